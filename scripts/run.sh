@@ -18,6 +18,8 @@ jgrapht_io_lib="$HOME/.ivy2/cache/org.jgrapht/jgrapht-io/jars/jgrapht-io-1.3.1.j
 # ==========================================================================================
 
 tool_jar="$HOME/Desktop/bc.jar"
+# SMT query results are kept across runs in this file (remove it to start over)
+query_cache="$HOME/.boundchecker/queries.cache"
 # target_project_lib=`python $PWD/scripts/findlibs.py "$1"` # absolute path
 src_dir="$1" # absolute path
 
@@ -31,4 +33,4 @@ mkdir output/
 
 # set -x
 classpath=".:$lib/com.microsoft.z3.jar:$scala_lib:$tool_jar:$jgrapht_core_lib:$jgrapht_io_lib:$jheap_lib"
-time javac -Xmaxwarns 10000 -Xmaxerrs 10000 -cp $classpath -processor boundchecker.BoundChecker `find $src_dir -name "*.java"` -d output/
\ No newline at end of file
+time javac -J-Dboundchecker.cache=$query_cache -Xmaxwarns 10000 -Xmaxerrs 10000 -cp $classpath -processor boundchecker.BoundChecker `find $src_dir -name "*.java"` -d output/
\ No newline at end of file
@@ -0,0 +1,290 @@
+package analysis
+
+import boundchecker.Vars
+import com.microsoft.z3.{ArithExpr, BoolExpr, IntExpr}
+import com.sun.source.tree._
+import org.checkerframework.dataflow.cfg.block.{Block, ConditionalBlock, RegularBlock}
+import org.jgrapht.Graph
+import org.jgrapht.graph.DefaultEdge
+import utils.{GraphUtil, Utils}
+
+import scala.collection.JavaConverters._
+import scala.collection.immutable.HashMap
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+// The octagons at blocks, over the int-typed variables in names (in the same order)
+class Facts(val names: IndexedSeq[String], val octagons: Map[Long, Octagon], val global: Octagon) {
+  // The constraints at the block as Z3 expressions, which are empty if the block is not analyzed
+  def at(blockId: Long, z3Solver: Z3Solver): Set[BoolExpr] = {
+    octagons.get(blockId) match {
+      case Some(oct) => toExprs(oct, z3Solver)
+      case None => Set[BoolExpr]()
+    }
+  }
+
+  def toExprs(oct: Octagon, z3Solver: Z3Solver): Set[BoolExpr] = {
+    def term(i: Int, a: Int): ArithExpr = {
+      val v = z3Solver.mkIntVar(names(i))
+      if (a > 0) v else z3Solver.mkMul(z3Solver.mkIntVal(-1), v)
+    }
+
+    // Constants are only kept if they fit in an int
+    oct.constraints.filter({ case (_, _, _, _, c) => c >= Int.MinValue && c <= Int.MaxValue }).map({
+      case (i, a, -1, _, c) => z3Solver.mkLe(term(i, a), z3Solver.mkIntVal(c.toInt))
+      case (i, a, j, b, c) => z3Solver.mkLe(z3Solver.mkAdd(term(i, a), term(j, b)), z3Solver.mkIntVal(c.toInt))
+    }).toSet
+  }
+}
+
+object Facts {
+  // Facts of the methods that are being analyzed, by the ids of the analyzed blocks (which are unique across methods)
+  private var byBlock = new HashMap[Long, Facts]
+
+  def register(facts: Facts): Unit = Facts.synchronized(facts.octagons.keys.foreach(id => byBlock += (id -> facts)))
+
+  def unregister(facts: Facts): Unit = Facts.synchronized(byBlock = byBlock.filter({ case (_, f) => f ne facts }))
+
+  def of(blockId: Long): Option[Facts] = Facts.synchronized(byBlock.get(blockId))
+}
+
+// An abstract interpreter over the graph of a CFG with the octagon domain, which (like Interpreter) follows the
+// semantics of PredTrans: only the statements that wlpBasic handles update the state, and branches are refined by the
+// conditions that getCond finds. Expressions that are not linear are over-approximated by intervals (or by any value).
+// A fixpoint is computed once for a method, with widening at the join points of cycles, and without Z3
+object AbstractInterpreter {
+  val DEBUG = false
+
+  // The number of joins at a widening point before widening starts
+  val WIDENING_DELAY = 2
+  // A block that is visited more times than this is given the top octagon, which guarantees termination
+  val MAX_NUM_OF_VISITS = 100
+
+  // Sum of coeffs(i) * x_i + const
+  private case class Linear(coeffs: Map[Int, Long], const: Long) {
+    def +(that: Linear): Linear = {
+      val keys = coeffs.keySet ++ that.coeffs.keySet
+      Linear(keys.map(k => k -> (coeffs.getOrElse(k, 0L) + that.coeffs.getOrElse(k, 0L))).filter({ case (_, c) => c != 0 }).toMap, const + that.const)
+    }
+
+    def *(k: Long): Linear = {
+      if (k == 0) Linear(Map(), 0)
+      else Linear(coeffs.map({ case (i, c) => i -> c * k }), const * k)
+    }
+
+    def -(that: Linear): Linear = this + that * -1
+  }
+
+  /**
+    *
+    * @param graph the graph of a method's CFG
+    * @param vars  the variables of the method
+    * @return the octagons after every block that updates a resource variable and at every loop head, together with
+    *         the join of the octagons after all blocks that have statements
+    */
+  def run(graph: Graph[Block, DefaultEdge], vars: Vars): Facts = {
+    val start = System.nanoTime()
+    val names = vars.allVars.toIndexedSeq.collect({ case v: IntExpr => v.getFuncDecl.getName.toString })
+    val index: Map[String, Int] = names.zipWithIndex.toMap
+    val n = names.size
+
+    val roots = graph.vertexSet().asScala.filter(b => graph.inDegreeOf(b) == 0)
+    if (roots.size != 1) return new Facts(names, HashMap[Long, Octagon](), Octagon.top(n))
+    val root = roots.head
+
+    val wideningPoints = graph.vertexSet().asScala.filter(b => graph.inDegreeOf(b) > 1 && GraphUtil.isInCycle(b, graph)).toSet
+    val inStates = new mutable.HashMap[Block, Octagon]
+    val outStates = new mutable.HashMap[Block, Octagon]
+    val visits = new mutable.HashMap[Block, Int]
+    val worklist = new mutable.Queue[Block]
+    inStates.put(root, Octagon.top(n))
+    worklist.enqueue(root)
+
+    while (worklist.nonEmpty) {
+      val block = worklist.dequeue()
+      val out = transfer(block, inStates(block), index)
+      outStates.put(block, out)
+      graph.outgoingEdgesOf(block).asScala.foreach({
+        e =>
+          val succ = graph.getEdgeTarget(e)
+          val edgeState = block match {
+            case cond: ConditionalBlock =>
+              PredTrans.branchTree(cond, graph) match {
+                case Some(tree: ExpressionTree) => guard(tree, succ == cond.getThenSuccessor, out, index)
+                case _ => out
+              }
+            case _ => out
+          }
+          val newState = inStates.get(succ) match {
+            case None => Some(edgeState)
+            case Some(old) =>
+              val count = visits.getOrElse(succ, 0) + 1
+              visits.put(succ, count)
+              val joined = old.join(edgeState)
+              val next = {
+                if (count > MAX_NUM_OF_VISITS) Octagon.top(n)
+                else if (wideningPoints.contains(succ) && count > WIDENING_DELAY) old.widen(joined)
+                else joined
+              }
+              if (next.leq(old)) None else Some(next)
+          }
+          newState.foreach({
+            state =>
+              inStates.put(succ, state)
+              if (!worklist.contains(succ)) worklist.enqueue(succ)
+          })
+      })
+    }
+
+    val facts = graph.vertexSet().asScala.toList.flatMap({
+      case reg: RegularBlock if PredTrans.getTopLevelStmts(reg).lastOption.exists(node => PredTrans.isResourceUpdate(node.getTree)) =>
+        outStates.get(reg).map(oct => reg.getId -> oct)
+      case cond: ConditionalBlock if GraphUtil.isInCycle(cond, graph) =>
+        inStates.get(cond).map(oct => cond.getId -> oct)
+      case _ => None
+    })
+    // The entry state is left out, because it is top (as is any in-state that it reaches before a statement)
+    val global = joinAll(graph.vertexSet().asScala.toList.flatMap({
+      case reg: RegularBlock if PredTrans.getTopLevelStmts(reg).nonEmpty => outStates.get(reg)
+      case _ => None
+    }), n)
+    if (DEBUG) println("[AbstractInterpreter] Analyzed " + outStates.size + " blocks in " + ("%.3f" format (System.nanoTime() - start).toDouble / Utils.NANO) + "s")
+    new Facts(names, HashMap(facts: _*), global)
+  }
+
+  // The join of states over n variables, which is bottom if there is none
+  def joinAll(states: Iterable[Octagon], n: Int): Octagon = states.foldLeft(Octagon.bottom(n))((acc, oct) => acc.join(oct))
+
+  // The constraints at the block of a method that is being analyzed, which are empty if the block is not analyzed
+  def factsAt(block: Block, z3Solver: Z3Solver): Set[BoolExpr] = {
+    Facts.of(block.getId) match {
+      case Some(facts) => facts.at(block.getId, z3Solver)
+      case None => Set[BoolExpr]()
+    }
+  }
+
+  private def transfer(block: Block, state: Octagon, index: Map[String, Int]): Octagon = {
+    block match {
+      case reg: RegularBlock =>
+        PredTrans.getTopLevelStmts(reg).foldLeft(state)({
+          (acc, node) =>
+            node.getTree match {
+              case variableTree: VariableTree =>
+                if (variableTree.getInitializer == null) acc
+                else assign(variableTree.getName.toString, variableTree.getInitializer, acc, index)
+              case assignmentTree: AssignmentTree =>
+                assign(assignmentTree.getVariable.toString, assignmentTree.getExpression, acc, index)
+              case _ => acc
+            }
+        })
+      case _ => state
+    }
+  }
+
+  private def linear(tree: ExpressionTree, index: Map[String, Int]): Option[Linear] = {
+    tree match {
+      case identifierTree: IdentifierTree => index.get(identifierTree.toString).map(i => Linear(Map(i -> 1L), 0))
+      case literalTree: LiteralTree if literalTree.getKind == Tree.Kind.INT_LITERAL => Some(Linear(Map(), literalTree.toString.toLong))
+      case parenthesizedTree: ParenthesizedTree => linear(parenthesizedTree.getExpression, index)
+      case unaryTree: UnaryTree =>
+        unaryTree.getKind match {
+          case Tree.Kind.UNARY_PLUS => linear(unaryTree.getExpression, index)
+          case Tree.Kind.UNARY_MINUS => linear(unaryTree.getExpression, index).map(l => l * -1)
+          case _ => None
+        }
+      case binaryTree: BinaryTree =>
+        (linear(binaryTree.getLeftOperand, index), linear(binaryTree.getRightOperand, index)) match {
+          case (Some(l), Some(r)) =>
+            binaryTree.getKind match {
+              case Tree.Kind.PLUS => Some(l + r)
+              case Tree.Kind.MINUS => Some(l - r)
+              case Tree.Kind.MULTIPLY =>
+                if (l.coeffs.isEmpty) Some(r * l.const)
+                else if (r.coeffs.isEmpty) Some(l * r.const)
+                else None
+              case _ => None
+            }
+          case _ => None
+        }
+      case _ => None
+    }
+  }
+
+  // The interval of a linear expression under an octagon, where None is unbounded
+  private def interval(l: Linear, state: Octagon): (Option[Long], Option[Long]) = {
+    l.coeffs.foldLeft((Option(l.const), Option(l.const)))({
+      case ((lo, hi), (i, c)) =>
+        val (vLo, vHi) = (state.lower(i), state.upper(i))
+        if (c > 0) (for (a <- lo; b <- vLo) yield a + c * b, for (a <- hi; b <- vHi) yield a + c * b)
+        else (for (a <- lo; b <- vHi) yield a + c * b, for (a <- hi; b <- vLo) yield a + c * b)
+    })
+  }
+
+  private def assign(name: String, expr: ExpressionTree, state: Octagon, index: Map[String, Int]): Octagon = {
+    index.get(name) match {
+      case None => state // Not an int-typed variable
+      case Some(i) =>
+        linear(expr, index) match {
+          case Some(Linear(coeffs, c)) if coeffs.size == 1 && Math.abs(coeffs.head._2) == 1 =>
+            state.assign(i, coeffs.head._2.toInt, coeffs.head._1, c)
+          case Some(l) =>
+            val (lo, hi) = interval(l, state)
+            state.assignInterval(i, lo, hi)
+          case None => state.forget(i)
+        }
+    }
+  }
+
+  // Refine the state with the condition (or its negation if positive is false). Conditions that are not octagonal are
+  // ignored, which over-approximates them. So are negations, which transExpr translates into opaque boolean variables
+  private def guard(tree: ExpressionTree, positive: Boolean, state: Octagon, index: Map[String, Int]): Octagon = {
+    if (state.isBottom) return state
+    tree match {
+      case parenthesizedTree: ParenthesizedTree => guard(parenthesizedTree.getExpression, positive, state, index)
+      case literalTree: LiteralTree if literalTree.getKind == Tree.Kind.BOOLEAN_LITERAL =>
+        if ((literalTree.toString == "true") == positive) state else Octagon.bottom(state.n)
+      case binaryTree: BinaryTree =>
+        val (l, r) = (binaryTree.getLeftOperand, binaryTree.getRightOperand)
+        (binaryTree.getKind, positive) match {
+          case (Tree.Kind.CONDITIONAL_AND, true) | (Tree.Kind.CONDITIONAL_OR, false) =>
+            guard(r, positive, guard(l, positive, state, index), index)
+          case (Tree.Kind.CONDITIONAL_OR, true) | (Tree.Kind.CONDITIONAL_AND, false) =>
+            guard(l, positive, state, index).join(guard(r, positive, state, index))
+          case (kind, _) =>
+            (linear(l, index), linear(r, index)) match {
+              case (Some(ll), Some(rl)) =>
+                val d = ll - rl
+                // Constraints of the form d <= c
+                val constraints: List[(Linear, Long)] = (kind, positive) match {
+                  case (Tree.Kind.LESS_THAN, true) | (Tree.Kind.GREATER_THAN_EQUAL, false) => List((d, -1L))
+                  case (Tree.Kind.LESS_THAN_EQUAL, true) | (Tree.Kind.GREATER_THAN, false) => List((d, 0L))
+                  case (Tree.Kind.GREATER_THAN, true) | (Tree.Kind.LESS_THAN_EQUAL, false) => List((d * -1, -1L))
+                  case (Tree.Kind.GREATER_THAN_EQUAL, true) | (Tree.Kind.LESS_THAN, false) => List((d * -1, 0L))
+                  case (Tree.Kind.EQUAL_TO, true) | (Tree.Kind.NOT_EQUAL_TO, false) => List((d, 0L), (d * -1, 0L))
+                  case _ => Nil
+                }
+                constraints.foldLeft(state)({ case (acc, (lin, c)) => addLinear(lin, c, acc) })
+              case _ => state
+            }
+        }
+      case _ => state
+    }
+  }
+
+  // Add lin <= c if it is octagonal (or a multiple of a variable)
+  private def addLinear(lin: Linear, c: Long, state: Octagon): Octagon = {
+    val bound = c - lin.const
+    lin.coeffs.toList match {
+      case Nil => if (bound >= 0) state else Octagon.bottom(state.n)
+      case (i, a) :: Nil =>
+        // a*x_i <= bound
+        if (a > 0) state.addConstraint(i, 1, Math.floorDiv(bound, a))
+        else state.addConstraint(i, -1, Math.floorDiv(bound, -a))
+      case (i, a) :: (j, b) :: Nil if Math.abs(a) == 1 && Math.abs(b) == 1 =>
+        state.addConstraint(i, a.toInt, j, b.toInt, bound)
+      case _ => state
+    }
+  }
+}
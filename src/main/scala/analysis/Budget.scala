@@ -0,0 +1,47 @@
+package analysis
+
+import utils.Utils
+
+import scala.collection.immutable.HashMap
+
+/**
+  * @author Tianhan Lu
+  */
+// The wall-clock time that the analysis of a method may take (in seconds), which starts when the budget is created.
+// Once it runs out, inference returns the invariants that are verified so far, and bounds are checked with them
+class Budget(val seconds: Double) {
+  private val start = System.nanoTime()
+
+  // Whether some inference is cut short because the budget runs out
+  var isHit: Boolean = false
+
+  def elapsed: Double = (System.nanoTime() - start).toDouble / Utils.NANO
+
+  def isExhausted: Boolean = elapsed > seconds
+}
+
+object Budget {
+  // E.g. -Dboundchecker.budget=30. There is no limit by default
+  val METHOD_BUDGET: Double = sys.props.get("boundchecker.budget").map(s => s.toDouble).getOrElse(Double.PositiveInfinity)
+
+  // Budgets of the methods that are being analyzed, by the ids of their blocks (which are unique across methods)
+  private var byBlock = new HashMap[Long, Budget]
+
+  def register(budget: Budget, blockIds: Iterable[Long]): Unit = Budget.synchronized(blockIds.foreach(id => byBlock += (id -> budget)))
+
+  def unregister(budget: Budget): Unit = Budget.synchronized(byBlock = byBlock.filter({ case (_, b) => b ne budget }))
+
+  def of(blockId: Long): Option[Budget] = Budget.synchronized(byBlock.get(blockId))
+
+  def isHit(blockId: Long): Boolean = of(blockId).exists(budget => budget.isHit)
+
+  // Whether the budget of the method of the block runs out, in which case the budget is marked as hit
+  def isExhausted(blockId: Long): Boolean = {
+    of(blockId) match {
+      case Some(budget) =>
+        if (budget.isExhausted) budget.isHit = true
+        budget.isHit
+      case None => false
+    }
+  }
+}
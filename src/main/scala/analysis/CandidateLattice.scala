@@ -0,0 +1,86 @@
+package analysis
+
+import scala.collection.immutable.BitSet
+
+/**
+  * @author Tianhan Lu
+  */
+/**
+  *
+  * @param atoms   the atom table, where a candidate is the conjunction of the atoms whose indices are in a bitset
+  * @param maxSize the maximum number of atoms in a candidate
+  */
+// Candidates ordered by inclusion (i.e. a superset is a stronger conjunction). Candidates are explored from smaller to
+// larger sets, and a candidate that fails the base case rules out all of its supersets, which are not checked. Atoms
+// that come first are preferred: candidates of the same size are checked in the order of the sums of their indices
+class CandidateLattice[T](val atoms: IndexedSeq[T], maxSize: Int) {
+  // Minimal candidates that fail the base case
+  private var baseFailures = List[BitSet]()
+  private var verified = List[BitSet]()
+
+  var numOfChecked: Int = 0
+  var numOfPruned: Int = 0
+  // Whether exploration is stopped before all candidates are checked
+  var isTruncated: Boolean = false
+
+  def isRuledOut(candidate: BitSet): Boolean = baseFailures.exists(failure => failure.subsetOf(candidate))
+
+  // Supersets of candidate with one more atom, each of which is generated once (from its subset without its last atom)
+  private def extensions(candidate: BitSet): Seq[BitSet] = {
+    val from = if (candidate.isEmpty) 0 else candidate.max + 1
+    (from until atoms.size).map(i => candidate + i)
+  }
+
+  /**
+    *
+    * @param check for each candidate, whether it passes the base case and whether it is verified (i.e. it passes both
+    *              the base case and the inductive case)
+    * @param stop  whether to stop exploring, which is asked before every batch of CandidateLattice.BATCH_SIZE
+    *              candidates (or before every level if it never stops). Candidates that are verified before stopping
+    *              are still reported
+    */
+  def explore(check: Seq[BitSet] => Seq[(Boolean, Boolean)], stop: Option[() => Boolean] = None): Unit = {
+    var level: Seq[BitSet] = List(BitSet.empty)
+    var size = 0
+    while (level.nonEmpty) {
+      val (pruned, candidates) = level.partition(candidate => isRuledOut(candidate))
+      numOfPruned += pruned.size
+      val batches = stop match {
+        case Some(_) => candidates.sortBy(candidate => candidate.sum).grouped(CandidateLattice.BATCH_SIZE).toList
+        case None => List(candidates)
+      }
+      var passed = List[BitSet]()
+      batches.foreach({
+        batch =>
+          if (!isTruncated && stop.exists(s => s())) isTruncated = true
+          if (!isTruncated) {
+            numOfChecked += batch.size
+            val res = check(batch)
+            passed = batch.zip(res).foldLeft(passed)({
+              case (acc, (candidate, (base, ok))) =>
+                if (base && ok) verified = candidate :: verified
+                if (base) candidate :: acc
+                else {
+                  baseFailures = candidate :: baseFailures
+                  acc
+                }
+            })
+          }
+      })
+      size += 1
+      level = if (size <= maxSize && !isTruncated) passed.reverse.flatMap(candidate => extensions(candidate)) else Nil
+    }
+  }
+
+  // The verified candidates that are not subsets of other verified candidates
+  def maximalVerified: List[BitSet] = {
+    verified.filter(candidate => !verified.exists(other => candidate != other && candidate.subsetOf(other)))
+  }
+
+  def atomsOf(candidate: BitSet): List[T] = candidate.toList.map(i => atoms(i))
+}
+
+object CandidateLattice {
+  // The number of candidates that are checked between two stop requests
+  val BATCH_SIZE = 64
+}
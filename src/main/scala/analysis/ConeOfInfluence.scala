@@ -0,0 +1,156 @@
+package analysis
+
+import boundchecker.Vars
+import com.microsoft.z3.Expr
+import com.sun.source.tree.{AssignmentTree, ExpressionTree, Tree, VariableTree}
+import org.checkerframework.dataflow.cfg.block.SpecialBlock.SpecialBlockType
+import org.checkerframework.dataflow.cfg.block.{Block, ConditionalBlock, RegularBlock}
+import org.jgrapht.Graph
+import org.jgrapht.graph.DefaultEdge
+import utils.{GraphUtil, Utils}
+
+import scala.collection.JavaConverters._
+import scala.collection.immutable.{HashMap, HashSet}
+
+/**
+  * @author Tianhan Lu
+  */
+// The variables that may influence the state at a block, as far as bounds are concerned. Starting from resource
+// variables, arguments (which bounds are expressed in) and the conditions of loops, a variable is added if it is used
+// in an assignment to a variable in the cone (data dependence), or in the condition of a branch that decides whether
+// such an assignment is executed (control dependence, computed from postdominators). Only blocks that reach the block
+// of interest are considered. Like PredTrans, only the statements that wlpBasic handles are assignments
+object ConeOfInfluence {
+  val DEBUG = false
+
+  // Blocks of methods whose invariants are inferred over all variables, e.g. because bounds fail to verify with the
+  // invariants over the cones (see BoundVisitor.checkBound)
+  private var disabled = new HashSet[Long]
+
+  def disable(blockIds: Iterable[Long]): Unit = ConeOfInfluence.synchronized(disabled ++= blockIds)
+
+  def enable(blockIds: Iterable[Long]): Unit = ConeOfInfluence.synchronized(disabled --= blockIds)
+
+  def isEnabled(blockId: Long): Boolean = Invariant.CONE_OF_INFLUENCE && ConeOfInfluence.synchronized(!disabled.contains(blockId))
+
+  /**
+    *
+    * @param loc   a resource update or a loop head
+    * @param graph the graph of a method's CFG, or of a loop with its exits (see withLoopExits)
+    * @param vars  the variables of the method
+    * @return the variables in the cone of influence of loc, or all variables if the cone can not be computed
+    */
+  def apply(loc: Block, graph: Graph[Block, DefaultEdge], vars: Vars): Set[Expr] = {
+    val allVars = vars.allVars
+    val byName: Map[String, Expr] = HashMap(allVars.toList.map(v => v.getFuncDecl.getName.toString -> v): _*)
+    val postDoms = postDominators(graph) match {
+      case Some(p) => p
+      case None => return allVars
+    }
+
+    val ancestors = reaching(loc, graph)
+    val loopConds = ancestors.toList.collect({
+      case cond: ConditionalBlock if GraphUtil.isInCycle(cond, graph) => condVars(cond, graph)
+    }).flatten
+    // Assignments in blocks that reach loc, with the variables that they use
+    val assignments: List[(Block, String, Set[String])] = ancestors.toList.flatMap({
+      case reg: RegularBlock =>
+        PredTrans.getTopLevelStmts(reg).flatMap({
+          node =>
+            node.getTree match {
+              case variableTree: VariableTree if variableTree.getInitializer != null =>
+                Some((reg: Block, variableTree.getName.toString, namesOf(variableTree.getInitializer)))
+              case assignmentTree: AssignmentTree =>
+                Some((reg: Block, assignmentTree.getVariable.toString, namesOf(assignmentTree.getExpression)))
+              case _ => None
+            }
+        })
+      case _ => Nil
+    })
+    // Branches that decide whether a block is executed: b is control dependent on c if b postdominates a successor of
+    // c, but does not postdominate c
+    val branches = ancestors.toList.collect({ case cond: ConditionalBlock => cond })
+
+    def controlDeps(block: Block): List[ConditionalBlock] = {
+      branches.filter({
+        cond =>
+          !postDoms(cond).contains(block) &&
+            graph.outgoingEdgesOf(cond).asScala.exists(e => postDoms(graph.getEdgeTarget(e)).contains(block))
+      })
+    }
+
+    var cone: Set[String] = HashSet(vars.resVars.toList.map(v => v.getFuncDecl.getName.toString) ++ vars.args.toList.map(v => v.getFuncDecl.getName.toString) ++ loopConds: _*)
+    var changed = true
+    while (changed) {
+      val relevant = assignments.filter({ case (_, x, _) => cone.contains(x) })
+      val next = relevant.foldLeft(cone)({
+        case (acc, (block, _, used)) => acc ++ used ++ controlDeps(block).flatMap(cond => condVars(cond, graph))
+      })
+      changed = next.size != cone.size
+      cone = next
+    }
+
+    val res = allVars.filter(v => cone.contains(v.getFuncDecl.getName.toString))
+    if (DEBUG) Utils.printYellowString("[COI] Block " + loc.getId + ": " + res.size + " out of " + allVars.size + " variables (" + (byName.keySet -- cone).mkString(", ") + " are left out)")
+    res
+  }
+
+  // A loop's SCC (e.g. the graph that Invariant.inferLoopInv is given) has no exit, hence no postdominators. The edges
+  // that leave the loop, which are the missing branches of its conditional blocks (e.g. the loop head and breaks), are
+  // restored as edges to a new exit block
+  def withLoopExits(scc: Graph[Block, DefaultEdge]): Graph[Block, DefaultEdge] = {
+    val newGraph = GraphUtil.cloneGraph(scc)
+    val exitBlk = GraphUtil.newSpecialBlock(SpecialBlockType.EXIT)
+    newGraph.addVertex(exitBlk)
+    scc.vertexSet().asScala.foreach({
+      case cond: ConditionalBlock if scc.outDegreeOf(cond) < 2 => newGraph.addEdge(cond, exitBlk)
+      case _ =>
+    })
+    newGraph
+  }
+
+  private def namesOf(tree: Tree): Set[String] = GraphUtil.getExprVars(tree).map({ case (name, _) => name })
+
+  // The variables in the branching condition (see PredTrans.branchTree)
+  private def condVars(cond: ConditionalBlock, graph: Graph[Block, DefaultEdge]): Set[String] = {
+    PredTrans.branchTree(cond, graph) match {
+      case Some(expTree: ExpressionTree) => namesOf(expTree)
+      case _ => HashSet()
+    }
+  }
+
+  // The blocks from which loc is reachable (including loc)
+  private def reaching(loc: Block, graph: Graph[Block, DefaultEdge]): Set[Block] = {
+    var visited: Set[Block] = HashSet(loc)
+    var frontier = List(loc)
+    while (frontier.nonEmpty) {
+      val preds = frontier.flatMap(b => graph.incomingEdgesOf(b).asScala.map(e => graph.getEdgeSource(e))).filter(b => !visited.contains(b))
+      visited ++= preds
+      frontier = preds.distinct
+    }
+    visited
+  }
+
+  // The postdominators of every block (including itself), or None if a block does not reach any exit
+  private def postDominators(graph: Graph[Block, DefaultEdge]): Option[Map[Block, Set[Block]]] = {
+    val blocks = graph.vertexSet().asScala.toSet
+    val exits = blocks.filter(b => graph.outDegreeOf(b) == 0)
+    // Postdominators are meaningless for a block that does not reach an exit (e.g. in an infinite loop)
+    if (exits.isEmpty || exits.flatMap(exit => reaching(exit, graph)) != blocks) return None
+    var postDoms: Map[Block, Set[Block]] = HashMap(blocks.toList.map(b => b -> (if (exits.contains(b)) HashSet(b) else blocks)): _*)
+    var changed = true
+    while (changed) {
+      changed = false
+      blocks.filter(b => !exits.contains(b)).foreach({
+        b =>
+          val succs = graph.outgoingEdgesOf(b).asScala.map(e => graph.getEdgeTarget(e))
+          val next = succs.map(s => postDoms(s)).reduce((x, y) => x.intersect(y)) + b
+          if (next != postDoms(b)) {
+            postDoms += (b -> next)
+            changed = true
+          }
+      })
+    }
+    Some(postDoms)
+  }
+}
@@ -0,0 +1,65 @@
+package analysis
+
+import utils.Utils
+
+/**
+  * @author Tianhan Lu
+  */
+// A pool of Z3Solvers (and hence Z3 contexts) that are reused across methods. A context is closed (which frees its
+// native memory) once it has been used for MAX_NUM_OF_USES methods, or when there are already enough idle contexts
+object ContextPool {
+  val DEBUG = false
+  val MAX_NUM_OF_USES = 16
+  val MAX_NUM_OF_IDLE = 2
+
+  private var idle = List[Z3Solver]()
+
+  var TOTAL_CREATED: Int = 0
+  var TOTAL_CLOSED: Int = 0
+
+  def acquire(): Z3Solver = {
+    val z3Solver = ContextPool.synchronized {
+      idle match {
+        case head :: tail =>
+          idle = tail
+          head
+        case Nil =>
+          TOTAL_CREATED += 1
+          new Z3Solver
+      }
+    }
+    z3Solver.numOfUses += 1
+    z3Solver
+  }
+
+  def release(z3Solver: Z3Solver): Unit = {
+    Invariant.purge(z3Solver)
+    // Workers checked queries of the same method, hence they are reset together with its solver
+    SolverPool.resetWorkers()
+    val reuse = ContextPool.synchronized {
+      if (z3Solver.numOfUses < MAX_NUM_OF_USES && idle.size < MAX_NUM_OF_IDLE) {
+        z3Solver.reset()
+        idle = z3Solver :: idle
+        true
+      }
+      else {
+        TOTAL_CLOSED += 1
+        false
+      }
+    }
+    if (!reuse) z3Solver.close()
+    if (DEBUG) Utils.printRedString("Contexts: " + TOTAL_CREATED + " created; " + TOTAL_CLOSED + " closed; " + idle.size + " idle")
+  }
+
+  def closeAll(): Unit = {
+    val toClose = ContextPool.synchronized {
+      val l = idle
+      idle = Nil
+      TOTAL_CLOSED += l.size
+      l
+    }
+    toClose.foreach(z3Solver => z3Solver.close())
+    // Workers' contexts are only reset between methods (see release), hence they are closed here
+    SolverPool.closeWorkers()
+  }
+}
@@ -0,0 +1,32 @@
+package analysis
+
+import com.microsoft.z3.{BoolExpr, Model}
+
+/**
+  * @author Tianhan Lu
+  */
+// Models of the negations of the assertions that failed to be valid. A model that satisfies the negation of another
+// assertion refutes it as well, which is found by evaluating the negation under the model (in this process) instead
+// of checking it with a solver. Models belong to the context of the solver that finds them
+class Counterexamples(cap: Int) {
+  // The most recent counterexamples come first
+  private var models: List[Model] = Nil
+
+  def size: Int = models.size
+
+  def add(model: Model): Unit = models = (model :: models).take(cap)
+
+  // Whether a known counterexample satisfies negation. Negations that Z3 cannot evaluate to a value (e.g. because of
+  // quantifiers) are never refuted
+  def refutes(negation: BoolExpr): Boolean = {
+    val refuted = models.exists(model => model.eval(negation, true).isTrue)
+    if (refuted) Counterexamples.synchronized(Counterexamples.TOTAL_REFUTED += 1)
+    refuted
+  }
+}
+
+object Counterexamples {
+  val MAX_NUM_OF_COUNTEREXAMPLES = 32
+
+  var TOTAL_REFUTED: Int = 0
+}
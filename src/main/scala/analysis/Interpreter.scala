@@ -0,0 +1,202 @@
+package analysis
+
+import boundchecker.Vars
+import com.microsoft.z3.BoolExpr
+import com.sun.source.tree._
+import org.checkerframework.dataflow.cfg.block.{Block, ConditionalBlock, ExceptionBlock, RegularBlock}
+import org.jgrapht.Graph
+import org.jgrapht.graph.DefaultEdge
+import utils.{GraphUtil, Utils}
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+/**
+  * @author Tianhan Lu
+  */
+// A concrete interpreter over the graph of a CFG, which follows the semantics of PredTrans: only the statements that
+// wlpBasic handles update the state, branches are decided by the conditions that getCond finds, and expressions are
+// evaluated as transExpr translates them (e.g. boolean method invocations are random). Hence every recorded state is
+// also a state of PredTrans's semantics, and any candidate invariant that a recorded state falsifies is not valid
+object Interpreter {
+  val DEBUG = false
+
+  val NUM_OF_RUNS = 64
+  val MAX_NUM_OF_STEPS = 10000
+  // Values of arguments in the first runs, after which values are drawn from [-MAX_RAND_VALUE, MAX_RAND_VALUE]
+  val BOUNDARY_VALUES: Array[Int] = Array(0, 1, -1, 2, 3, 10, 100)
+  val MAX_RAND_VALUE = 100
+
+  // A run is aborted when it reaches a state that the semantics does not define (e.g. division by zero or overflow)
+  private class Abort extends Exception
+
+  /**
+    *
+    * @param graph the graph of a method's CFG
+    * @param vars  the variables of the method
+    * @return the states after every block that updates a resource variable, and the states at every loop head
+    */
+  def run(graph: Graph[Block, DefaultEdge], vars: Vars): Traces = {
+    val start = System.nanoTime()
+    val names = vars.allVars.toIndexedSeq.map(v => v.getFuncDecl.getName.toString)
+    val isBool = vars.allVars.toIndexedSeq.map(v => v.isInstanceOf[BoolExpr])
+    val isArg = vars.allVars.toIndexedSeq.map(v => vars.args.contains(v))
+    val index: Map[String, Int] = names.zipWithIndex.toMap
+    val traces = new Traces(names)
+
+    val roots = graph.vertexSet().asScala.filter(b => graph.inDegreeOf(b) == 0)
+    if (roots.size != 1) return traces
+    val root = roots.head
+
+    val toRecord: Set[Long] = graph.vertexSet().asScala.filter({
+      case reg: RegularBlock => PredTrans.getTopLevelStmts(reg).lastOption.exists(node => PredTrans.isResourceUpdate(node.getTree))
+      case cond: ConditionalBlock => GraphUtil.isInCycle(cond, graph)
+      case _ => false
+    }).map(b => b.getId).toSet
+
+    val random = new Random(0)
+    (0 until NUM_OF_RUNS).foreach({
+      i =>
+        val state = names.indices.map({
+          j =>
+            if (isBool(j)) random.nextInt(2)
+            else if (isArg(j) && i < BOUNDARY_VALUES.length) BOUNDARY_VALUES((i + j) % BOUNDARY_VALUES.length)
+            else random.nextInt(2 * MAX_RAND_VALUE + 1) - MAX_RAND_VALUE
+        }).toArray
+        try {
+          execute(graph, root, state, index, toRecord, traces, random)
+        } catch {
+          case _: Abort => // States that are recorded before are still valid
+        }
+    })
+    if (DEBUG) println("[Interpreter] Recorded states at " + traces.blockIds.size + " blocks in " + ("%.3f" format (System.nanoTime() - start).toDouble / Utils.NANO) + "s")
+    traces
+  }
+
+  private def execute(graph: Graph[Block, DefaultEdge],
+                      root: Block,
+                      state: Array[Int],
+                      index: Map[String, Int],
+                      toRecord: Set[Long],
+                      traces: Traces,
+                      random: Random): Unit = {
+    var cur: Option[Block] = Some(root)
+    var steps = 0
+    while (cur.isDefined && steps < MAX_NUM_OF_STEPS) {
+      val block = cur.get
+      block match {
+        case reg: RegularBlock =>
+          PredTrans.getTopLevelStmts(reg).foreach({
+            node =>
+              node.getTree match {
+                case variableTree: VariableTree =>
+                  if (variableTree.getInitializer != null)
+                    assign(variableTree.getName.toString, eval(variableTree.getInitializer, state, index, random), state, index)
+                case assignmentTree: AssignmentTree =>
+                  assign(assignmentTree.getVariable.toString, eval(assignmentTree.getExpression, state, index, random), state, index)
+                case _ =>
+              }
+          })
+        case _ =>
+      }
+      if (toRecord.contains(block.getId)) traces.record(block.getId, state)
+
+      val succs = graph.outgoingEdgesOf(block).asScala.toList.map(e => graph.getEdgeTarget(e))
+      val next = block match {
+        case cond: ConditionalBlock =>
+          if (branchCond(cond, graph, state, index, random)) cond.getThenSuccessor else cond.getElseSuccessor
+        case exception: ExceptionBlock if exception.getSuccessor != null => exception.getSuccessor
+        case _ =>
+          succs match {
+            case Nil => null
+            case succ :: Nil => succ
+            case _ => throw new Abort
+          }
+      }
+      cur = Option(next)
+      steps += 1
+    }
+  }
+
+  // The branching condition is the last expression of the only predecessor (see PredTrans.getCond)
+  private def branchCond(cond: ConditionalBlock, graph: Graph[Block, DefaultEdge], state: Array[Int], index: Map[String, Int], random: Random): Boolean = {
+    PredTrans.branchTree(cond, graph) match {
+      case Some(expTree: ExpressionTree) => eval(expTree, state, index, random) != 0
+      case Some(x) if PredTrans.isAssertionsEnabled(x) => true
+      case _ => throw new Abort
+    }
+  }
+
+  private def assign(name: String, value: Long, state: Array[Int], index: Map[String, Int]): Unit = {
+    index.get(name).foreach({
+      i =>
+        if (value < Int.MinValue || value > Int.MaxValue) throw new Abort
+        state(i) = value.toInt
+    })
+  }
+
+  // Booleans evaluate to 0 or 1. Expressions that transExpr translates into a default value evaluate to that value
+  private def eval(tree: ExpressionTree, state: Array[Int], index: Map[String, Int], random: Random): Long = {
+    def bool(b: Boolean): Long = if (b) 1L else 0L
+
+    tree match {
+      case identifierTree: IdentifierTree =>
+        index.get(identifierTree.toString) match {
+          case Some(i) => state(i)
+          case None => throw new Abort // A variable that is neither an int nor a boolean
+        }
+
+      case literalTree: LiteralTree =>
+        literalTree.getKind match {
+          case Tree.Kind.BOOLEAN_LITERAL => bool(literalTree.toString == "true")
+          case Tree.Kind.INT_LITERAL => literalTree.toString.toLong
+          case _ => throw new Abort
+        }
+
+      case _: MethodInvocationTree => random.nextInt(2)
+
+      case binaryTree: BinaryTree =>
+        val left = eval(binaryTree.getLeftOperand, state, index, random)
+        val right = eval(binaryTree.getRightOperand, state, index, random)
+        binaryTree.getKind match {
+          case Tree.Kind.CONDITIONAL_AND => bool(left != 0 && right != 0)
+          case Tree.Kind.CONDITIONAL_OR => bool(left != 0 || right != 0)
+          case Tree.Kind.DIVIDE =>
+            // Z3's integer division, whose remainder is never negative
+            if (right == 0) throw new Abort
+            else if (right > 0) Math.floorDiv(left, right)
+            else -Math.floorDiv(left, -right)
+          case Tree.Kind.EQUAL_TO => bool(left == right)
+          case Tree.Kind.GREATER_THAN => bool(left > right)
+          case Tree.Kind.GREATER_THAN_EQUAL => bool(left >= right)
+          case Tree.Kind.LESS_THAN => bool(left < right)
+          case Tree.Kind.LESS_THAN_EQUAL => bool(left <= right)
+          case Tree.Kind.MINUS => left - right
+          case Tree.Kind.MULTIPLY => left * right
+          case Tree.Kind.NOT_EQUAL_TO => bool(left != right)
+          case Tree.Kind.PLUS => left + right
+          case _ => throw new Abort
+        }
+
+      case unaryTree: UnaryTree =>
+        unaryTree.getKind match {
+          case Tree.Kind.UNARY_PLUS => eval(unaryTree.getExpression, state, index, random)
+          case Tree.Kind.UNARY_MINUS => -eval(unaryTree.getExpression, state, index, random)
+          case Tree.Kind.LOGICAL_COMPLEMENT => bool(eval(unaryTree.getExpression, state, index, random) == 0)
+          case _ => throw new Abort
+        }
+
+      case parenthesizedTree: ParenthesizedTree => eval(parenthesizedTree.getExpression, state, index, random)
+
+      case _ => 0
+    }
+  }
+
+  // Drop the candidates that a state recorded at the block falsifies
+  def filter(candidates: Seq[BoolExpr], block: Block): Seq[BoolExpr] = {
+    Traces.of(block.getId) match {
+      case Some(traces) => candidates.filter(c => !traces.falsifies(block.getId, c))
+      case None => candidates
+    }
+  }
+}
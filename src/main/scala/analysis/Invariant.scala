@@ -2,17 +2,18 @@ package analysis
 
 import boundchecker.Vars
 import com.microsoft.z3.{BoolExpr, Expr, IntExpr}
-import com.sun.source.tree.MethodTree
+import com.sun.source.tree.{MethodTree, Tree}
 import javax.lang.model.`type`.{TypeKind, TypeMirror}
 import org.checkerframework.dataflow.cfg.block.SpecialBlock.SpecialBlockType
-import org.checkerframework.dataflow.cfg.block.{Block, ConditionalBlock, SpecialBlockImpl}
+import org.checkerframework.dataflow.cfg.block.{Block, ConditionalBlock}
 import org.checkerframework.javacutil.TreeUtils
 import org.jgrapht.Graph
 import org.jgrapht.graph.DefaultEdge
-import utils.{GraphUtil, Utils}
+import utils.{GraphFingerprint, GraphUtil, Utils}
 
 import scala.collection.JavaConverters._
 import scala.collection.immutable.{HashMap, HashSet}
+import scala.collection.mutable
 
 /**
   * @author Tianhan Lu
@@ -27,79 +28,295 @@ object Invariant {
   val MAX_NUM_OF_INV = 3
   val MAX_NUM_OF_LOOP_INV = 2
 
+  // Enumerate conjunctions of up to MAX_NUM_OF_INV (or MAX_NUM_OF_LOOP_INV) octagon atoms, and verify each of them
+  val ENUMERATION = "enumeration"
+  // Start from the conjunction of all octagon atoms, and drop the atoms that are not preserved until a fixpoint, which
+  // infers the strongest conjunctive invariant (as a single invariant)
+  val HOUDINI = "houdini"
+  // Synthesize linear invariants with unknown coefficients (see TemplateSynthesis), and fall back to enumeration if
+  // no invariant is found
+  val TEMPLATE = "template"
+  // Take the octagons that AbstractInterpreter computes as invariants, without verifying them, and fall back to
+  // enumeration if there is none
+  val ABSTRACT = "abstract"
+  val INFERENCE_ENGINE: String = ENUMERATION
+
+  // If true, then validity is checked by Skolemizing the outer universal quantifier (i.e. checking if the negated
+  // assertion is satisfiable) and loops havoc assigned variables with fresh constants (instead of universally quantified
+  // variables), such that inference and bound checks only issue quantifier-free queries
+  val QUANTIFIER_FREE_VC = false
+
+  // If true, then the weakest preconditions of candidates at the same site are instantiated from one weakest
+  // precondition of a symbolic post-condition (see WlpTemplate), such that the graph is processed only once
+  val PLACEHOLDER_POST = false
+
+  // If true, then candidates are checked one after another, where the model of every failed check is kept as a
+  // counterexample (see Counterexamples), and the candidates that a known counterexample refutes are not sent to Z3
+  val COUNTEREXAMPLES = false
+
+  // If true, then methods are run by Interpreter before inference, and candidates that a recorded state falsifies are
+  // dropped before they are sent to Z3
+  val TRACE_FILTER = true
+
+  // If true, then methods are analyzed by AbstractInterpreter before inference, and the (valid) octagons at loop heads
+  // and after resource updates are conjoined to every inferred invariant. The octagon that holds after every block with
+  // statements is added to the candidate global invariants
+  val ABSTRACT_INTERPRETATION = true
+
+  // If true, then atoms are only generated over the variables in the cone of influence of the site (see
+  // ConeOfInfluence), and over all variables if only true is inferred from them
+  val CONE_OF_INFLUENCE = true
+
   var TOTAL_TIME_INV: Double = 0
   var TOTAL_TIME_LOOP_INV: Double = 0
 
-  var dp1 = List[(InvGuess, Set[BoolExpr])]()
-  var dp2 = List[(LoopInvGuess, Set[BoolExpr])]()
+  // Invariants are memoized per solver, because expressions can only be used in the context that creates them
+  // Keys are unique across methods, because block ids are drawn from a global counter
+  var dp1 = new HashMap[(InvGuess, Z3Solver), Set[BoolExpr]]
+  var dp2 = new HashMap[(LoopInvGuess, Z3Solver), Set[BoolExpr]]
+
+  // The number of times that atoms of a shape are in verified invariants (see shapeOf)
+  private var shapes = new HashMap[String, Int]
+  // Counterexamples of the checks of a kind at a location
+  var examples = new HashMap[(Long, QueryKind.Value, Z3Solver), Counterexamples]
 
   def verifyInv(root: Block,
                 exit: Block,
                 graph: Graph[Block, DefaultEdge],
                 inv: BoolExpr,
                 vars: Vars,
-                z3Solver: Z3Solver): Boolean = {
+                z3Solver: Z3Solver): Boolean = verifyInvs(root, exit, graph, List(inv), vars, z3Solver).head
+
+  // Verify the candidate invariants in one solver session
+  def verifyInvs(root: Block,
+                 exit: Block,
+                 graph: Graph[Block, DefaultEdge],
+                 invs: Seq[BoolExpr],
+                 vars: Vars,
+                 z3Solver: Z3Solver): Seq[Boolean] = {
+    verifyInvCases(root, exit, graph, invs, vars, z3Solver).map({ case (b1, b2) => b1 && b2 })
+  }
+
+  // Whether each candidate passes the base case, and whether it passes the inductive case (which is only checked for
+  // the candidates that pass the base case)
+  def verifyInvCases(root: Block,
+                     exit: Block,
+                     graph: Graph[Block, DefaultEdge],
+                     invs: Seq[BoolExpr],
+                     vars: Vars,
+                     z3Solver: Z3Solver): Seq[(Boolean, Boolean)] = {
     val allVars = vars.allVars
 
     // Base case
-    val r1 = PredTrans.wlpProg(graph, inv, root, exit, vars, z3Solver).get(root) match {
-      case Some(wlp) =>
-        val implication = z3Solver.mkImplies(z3Solver.mkTrue(), wlp)
-        val r1 = Invariant.checkForall(implication, allVars, z3Solver)
-        // println(root.getId, loc.getId, root == loc, roots.contains(root))
-        /*if (!r1._1) {
-          println(inv)
-          println(r1)
-          println()
-        }*/
-        r1._1
-      case None => false
-    }
+    val r1 = verifyBaseCase(root, exit, graph, invs, vars, z3Solver)
 
     // Inductive case (if node exit is in a cycle)
     if (GraphUtil.isInCycle(exit, graph)) {
-      val newGraph = GraphUtil.cloneGraph(graph)
-      val newRoot = new SpecialBlockImpl(SpecialBlockType.ENTRY)
-      newGraph.addVertex(newRoot)
-      val outEdges = newGraph.outgoingEdgesOf(exit).asScala.toList
-      val succNodes = outEdges.map(e => newGraph.getEdgeTarget(e))
-      succNodes.foreach(n => newGraph.addEdge(newRoot, n))
-      newGraph.removeAllEdges(outEdges.asJava)
-
-      val r2 = PredTrans.wlpProg(newGraph, inv, newRoot, exit, vars, z3Solver).get(newRoot) match {
-        case Some(wlp2) =>
-          val implication = z3Solver.mkImplies(inv, wlp2)
-          val r2 = Invariant.checkForall(implication, allVars, z3Solver)
-          /*if (!r2._1) {
-            println(inv)
-            println(r2)
-            println()
-          }*/
-          r2._1
-        case None => false
-      }
-      r1 && r2
+      val (newGraph, newRoot) = inductiveGraph(exit, graph)
+
+      // Only check the inductive case for the candidates that pass the base case
+      val passed = invs.zip(r1).filter({ case (_, b1) => b1 }).map({ case (inv, _) => inv })
+      val r2 = checkForallBatch(passed.zip(wlpsOf(newGraph, newRoot, exit, passed, vars, z3Solver)).map({
+        case (inv, wlp2) => wlp2.map(w => z3Solver.mkImplies(inv, w))
+      }), allVars, z3Solver, QueryKind.INDUCTIVE_CASE, examplesOf(exit, QueryKind.INDUCTIVE_CASE, z3Solver))
+      r1.foldLeft((List[(Boolean, Boolean)](), r2))({
+        case ((acc, remaining), true) => ((true, remaining.head) :: acc, remaining.tail)
+        case ((acc, remaining), false) => ((false, false) :: acc, remaining)
+      })._1.reverse
     }
     else {
-      r1
+      r1.map(b1 => (b1, true))
     }
     // TODO: Combine the two queries (for r1 and r2) into one?
   }
 
+  def verifyBaseCase(root: Block,
+                     exit: Block,
+                     graph: Graph[Block, DefaultEdge],
+                     invs: Seq[BoolExpr],
+                     vars: Vars,
+                     z3Solver: Z3Solver): Seq[Boolean] = {
+    checkForallBatch(wlpsOf(graph, root, exit, invs, vars, z3Solver).map({
+      wlp => wlp.map(w => z3Solver.mkImplies(z3Solver.mkTrue(), w))
+    }), vars.allVars, z3Solver, QueryKind.BASE_CASE, examplesOf(exit, QueryKind.BASE_CASE, z3Solver))
+  }
+
+  // The weakest precondition (at root) of each post-condition (at exit)
+  def wlpsOf(graph: Graph[Block, DefaultEdge],
+             root: Block,
+             exit: Block,
+             posts: Seq[BoolExpr],
+             vars: Vars,
+             z3Solver: Z3Solver): Seq[Option[BoolExpr]] = {
+    if (PLACEHOLDER_POST && posts.size > 1) {
+      val template = WlpTemplate(graph, root, exit, vars, z3Solver)
+      posts.map(post => template.instantiate(post))
+    }
+    else posts.map(post => PredTrans.wlpProg(graph, post, root, exit, vars, z3Solver).get(root))
+  }
+
+  // The paths from right after exit back to exit, which start from a new root
+  private def inductiveGraph(exit: Block, graph: Graph[Block, DefaultEdge]): (Graph[Block, DefaultEdge], Block) = {
+    val newGraph = GraphUtil.cloneGraph(graph)
+    val newRoot = GraphUtil.newSpecialBlock(SpecialBlockType.ENTRY)
+    newGraph.addVertex(newRoot)
+    val outEdges = newGraph.outgoingEdgesOf(exit).asScala.toList
+    val succNodes = outEdges.map(e => newGraph.getEdgeTarget(e))
+    succNodes.foreach(n => newGraph.addEdge(newRoot, n))
+    newGraph.removeAllEdges(outEdges.asJava)
+    (newGraph, newRoot)
+  }
+
+  // The atoms (in their order) whose conjunction with the atoms before them that are kept is satisfiable, which is all
+  // of them if their conjunction is satisfiable
+  def satisfiableSubset(atoms: Seq[BoolExpr], kind: QueryKind.Value, z3Solver: Z3Solver): Seq[BoolExpr] = {
+    if (atoms.isEmpty || z3Solver.checkSAT(getConjunction(atoms, z3Solver), kind)) atoms
+    else {
+      atoms.foldLeft(List[BoolExpr]())({
+        (kept, atom) => if (z3Solver.checkSAT(getConjunction(atom :: kept, z3Solver), kind)) atom :: kept else kept
+      }).reverse
+    }
+  }
+
+  /**
+    *
+    * @param atoms    the candidates
+    * @param wlps     the weakest precondition of each atom (None if it is not computed)
+    * @param assumptionsOf given the conjunction of the current atoms, what is assumed when checking each atom's
+    *                      weakest precondition (in the solver that is given)
+    * @param kind     the kind of queries
+    * @param z3Solver the solver that atoms and wlps belong to
+    * @param stop     whether to stop, which is asked before every round
+    * @return the largest subset of atoms whose conjunction implies each of its atoms' weakest preconditions, or no
+    *         atom if it is stopped before a fixpoint (because the remaining atoms are not known to be inductive)
+    */
+  def houdini(atoms: Seq[BoolExpr],
+              wlps: Seq[Option[BoolExpr]],
+              assumptionsOf: (BoolExpr, Z3Solver) => Seq[BoolExpr],
+              allVars: Set[Expr],
+              kind: QueryKind.Value,
+              z3Solver: Z3Solver,
+              stop: () => Boolean = () => false): Seq[BoolExpr] = {
+    var current = atoms.zip(wlps)
+    var changed = true
+    while (changed && current.nonEmpty) {
+      if (stop()) return Nil
+      val hypothesis = getConjunction(current.map({ case (atom, _) => atom }), z3Solver)
+      // Each round checks the remaining atoms (in parallel) against the same hypothesis, which is asserted once for all
+      // atoms of a chunk
+      val res = SolverPool.mapChunks(current, z3Solver)({
+        (chunk, solver) =>
+          checkForallBatch(chunk.map({
+            case (_, wlp) => wlp.map(w => solver.translate(w))
+          }), allVars.map(v => solver.translateVar(v)), solver, kind, assumptions = assumptionsOf(solver.translate(hypothesis), solver))
+      })
+      val next = current.zip(res).filter({ case (_, b) => b }).map({ case (entry, _) => entry })
+      changed = next.size != current.size
+      current = next
+    }
+    current.map({ case (atom, _) => atom })
+  }
+
+  /**
+    *
+    * @param invs        candidate global invariants
+    * @param stmts       atomic statements of a method
+    * @param assumptions what holds before every statement, in addition to the candidate itself
+    * @return the candidates that every statement preserves
+    */
+  // Each candidate is checked once against all statements (i.e. inv => /\ wlp(stmt, inv)), where statements that do not
+  // touch the candidate are left out, and all candidates are checked in one batch. Checks of different candidates are
+  // independent, hence a single pass is enough
+  def verifyGlobInvs(invs: Seq[BoolExpr], stmts: Seq[Tree], vars: Vars, z3Solver: Z3Solver, assumptions: Seq[BoolExpr] = Nil): Seq[BoolExpr] = {
+    val vcs = invs.map({
+      inv =>
+        val wlps = stmts.map(stmt => PredTrans.wlpBasic(stmt, inv, z3Solver)).filter(wlp => wlp != inv).distinct
+        if (wlps.isEmpty) None
+        else if (assumptions.contains(inv)) Some(getConjunction(wlps, z3Solver))
+        else Some(z3Solver.mkImplies(inv, getConjunction(wlps, z3Solver)))
+    })
+    // The assumptions are shared by all candidates, hence they are asserted once for each chunk
+    val res = SolverPool.mapChunks(vcs, z3Solver)({
+      (chunk, solver) =>
+        val toCheck = chunk.flatten.map(vc => solver.translate(vc))
+        val valid = checkForallBatch(toCheck.map(vc => Some(vc)), vars.allVars.map(v => solver.translateVar(v)), solver, QueryKind.GLOBAL_INV,
+          assumptions = assumptions.distinct.map(a => solver.translate(a)))
+        // Candidates without statements to check are trivially preserved
+        chunk.foldLeft((List[Boolean](), valid))({
+          case ((acc, remaining), Some(_)) => (remaining.head :: acc, remaining.tail)
+          case ((acc, remaining), None) => (true :: acc, remaining)
+        })._1.reverse
+    })
+    if (DEBUG_GEN_NEW_INV) println("[GlobInv] # of candidates: " + invs.size + "; # of statements: " + stmts.size + "; # of checked candidates: " + vcs.flatten.size)
+    invs.zip(res).filter({ case (_, ok) => ok }).map({ case (inv, _) => inv })
+  }
+
+  /**
+    *
+    * @param invs    candidate global invariants
+    * @param trusted global invariants that are assumed (e.g. the ones that users write), which are never dropped
+    * @param stmts   atomic statements of a method
+    * @return the largest subset of candidates that every statement preserves, assuming the subset and trusted
+    */
+  // Houdini over global invariants: in each round, every remaining candidate is checked once against all statements
+  // (see verifyGlobInvs), assuming the remaining candidates and trusted, and the candidates that fail are dropped.
+  // Hence each round is one batch, and the result does not depend on the order of statements
+  def largestInductiveSubset(invs: Seq[BoolExpr],
+                             trusted: Seq[BoolExpr],
+                             stmts: Seq[Tree],
+                             vars: Vars,
+                             z3Solver: Z3Solver): Seq[BoolExpr] = {
+    var current = invs.distinct
+    var changed = true
+    var numOfRounds = 0
+    while (changed && current.nonEmpty) {
+      val next = verifyGlobInvs(current, stmts, vars, z3Solver, current ++ trusted)
+      changed = next.size != current.size
+      current = next
+      numOfRounds += 1
+    }
+    if (DEBUG_GEN_NEW_INV) println("[GlobInv] # of candidates: " + invs.size + "; # of rounds: " + numOfRounds + "; # of inductive candidates: " + current.size)
+    current
+  }
+
+  private def houdiniInv(root: Block,
+                         loc: Block,
+                         graph: Graph[Block, DefaultEdge],
+                         vars: Vars,
+                         atomVars: Set[Expr],
+                         z3Solver: Z3Solver): Set[BoolExpr] = {
+    val allVars = vars.allVars
+    val atoms = traceFilter(genOctagonInv(atomVars, z3Solver).toList, loc)
+
+    // Base case, which does not depend on other atoms
+    val base = SolverPool.filterChunks(atoms, z3Solver)({
+      (chunk, solver) => verifyBaseCase(root, loc, graph, chunk.map(atom => solver.translate(atom)), vars.translate(solver), solver)
+    })
+
+    // Inductive case. Weakest preconditions are computed once, and then checked in every round
+    val survivors = {
+      if (GraphUtil.isInCycle(loc, graph)) {
+        val (newGraph, newRoot) = inductiveGraph(loc, graph)
+        val wlps = wlpsOf(newGraph, newRoot, loc, base, vars, z3Solver)
+        houdini(base, wlps, (h, _) => List(h), allVars, QueryKind.INDUCTIVE_CASE, z3Solver, () => Budget.isExhausted(loc.getId))
+      }
+      else base
+    }
+    if (DEBUG_GEN_NEW_INV) println("[Inv] # of atoms: " + atoms.size + "; # of base cases: " + base.size + "; # of inductive atoms: " + survivors.size)
+    HashSet(getConjunction(survivors, z3Solver))
+  }
+
   def inferInv(loc: Block,
                graph: Graph[Block, DefaultEdge],
                vars: Vars,
                z3Solver: Z3Solver,
                indent: Int = 0): Set[BoolExpr] = {
     val start = System.nanoTime()
-    val invGuess = InvGuess(loc, graph)
-    dp1.foreach({
-      case (invGuess_p, inv) =>
-        if (invGuess_p.equals(invGuess)) {
-          // println("!!!!!!!!!!!!!!!")
-          return inv
-        }
-    })
+    val invGuess = InvGuess(loc.getId, GraphUtil.fingerprint(graph), ConeOfInfluence.isEnabled(loc.getId))
+    Invariant.synchronized(dp1.get((invGuess, z3Solver))) match {
+      case Some(inv) => return inv
+      case None =>
+    }
 
     val roots = graph.vertexSet().asScala.filter(b => graph.inDegreeOf(b) == 0)
     assert(roots.size == 1)
@@ -108,36 +325,84 @@ object Invariant {
     val indentStr = " " * indent
     if (DEBUG_LOCAL_INV) println("\n\n\n" + indentStr + "---Infer invariant right after block " + loc.getId + " started:")
 
-    val allVars = vars.allVars
-    // Generate arbitrary conjunction of the above invariants
-    val allInvs: Set[BoolExpr] = genOctagonInv(allVars, z3Solver).subsets()
-      .filter(set => set.size <= MAX_NUM_OF_INV)
-      .map(set => Invariant.getConjunction(set, z3Solver)).toSet
-    val invs = {
-      // val invs = removeFalseInvs(allInvs, allVars, z3Solver)
-      // removeWeakInvs(invs, allVars, z3Solver)
-      // TODO: Only guess invariants about variables used or defined in the current program? Not sufficient for the Zulger example
-      allInvs
+    val facts = abstractFacts(loc, z3Solver)
+    if (Budget.isExhausted(loc.getId)) {
+      if (DEBUG_LOCAL_INV) println(indentStr + "---The budget runs out. Only the facts of abstract interpretation are used")
+      return HashSet(seed(z3Solver.mkTrue(), facts, z3Solver))
     }
-
-    if (DEBUG_GEN_NEW_INV) println("[Inv] # of vars: " + allVars.size + "; # of invs: " + invs.size)
-    val validInvs = invs.filter({
-      inv => verifyInv(root, loc, graph, inv, vars, z3Solver)
-    })
+    val validInvs = withConeOfInfluence(loc, graph, vars)({
+      atomVars =>
+        if (INFERENCE_ENGINE == ABSTRACT && facts.nonEmpty) HashSet(getConjunction(facts, z3Solver))
+        else if (INFERENCE_ENGINE == HOUDINI) houdiniInv(root, loc, graph, vars, atomVars, z3Solver)
+        else if (INFERENCE_ENGINE == TEMPLATE) {
+          val invs = templateInv(root, loc, graph, vars, z3Solver)
+          if (invs.nonEmpty) invs
+          else enumerateInv(root, loc, graph, vars, atomVars, z3Solver)
+        }
+        else enumerateInv(root, loc, graph, vars, atomVars, z3Solver)
+    }).map(inv => seed(inv, facts, z3Solver))
 
     if (DEBUG_LOCAL_INV) {
       println(indentStr + "---Infer invariant right after block " + loc.getId + " finishes.")
       println(indentStr + "---Valid invariants are: " + validInvs.foldLeft("\n")((acc, b) => acc + indentStr + "  " + b + "\n"))
     }
 
-    dp1 = (invGuess, validInvs) :: dp1
     val end = System.nanoTime()
-    TOTAL_TIME_INV += (end - start).toDouble / Utils.NANO
+    Invariant.synchronized {
+      // Results that are cut short by the budget are not memoized
+      if (!Budget.isHit(loc.getId)) dp1 = dp1 + ((invGuess, z3Solver) -> validInvs)
+      TOTAL_TIME_INV += (end - start).toDouble / Utils.NANO
+    }
 
     // Invariant.removeWeakInvs(validInvs, allVars, z3Solver)
     validInvs
   }
 
+  private def enumerateInv(root: Block,
+                           loc: Block,
+                           graph: Graph[Block, DefaultEdge],
+                           vars: Vars,
+                           atomVars: Set[Expr],
+                           z3Solver: Z3Solver): Set[BoolExpr] = {
+    // Arbitrary conjunctions of the above invariants (where the empty conjunction is true), which are explored
+    // from weaker to stronger ones, such that a conjunction that fails the base case rules out its supersets
+    val lattice = new CandidateLattice(prioritize(traceFilter(octagonAtoms(atomVars, z3Solver), loc), vars), MAX_NUM_OF_INV)
+    lattice.explore({
+      candidates =>
+        val invs = candidates.map(c => Invariant.getConjunction(lattice.atomsOf(c), z3Solver))
+        SolverPool.mapChunks(invs.toList, z3Solver)({
+          (chunk, solver) => verifyInvCases(root, loc, graph, chunk.map(inv => solver.translate(inv)), vars.translate(solver), solver)
+        })
+    }, stopOf(loc))
+    if (DEBUG_GEN_NEW_INV) println("[Inv] # of vars: " + atomVars.size + "; # of checked invs: " + lattice.numOfChecked + "; # of pruned invs: " + lattice.numOfPruned)
+    recordShapes(lattice.maximalVerified.flatMap(c => lattice.atomsOf(c)), vars)
+    // Weaker invariants are implied by the maximal ones, hence not reported
+    lattice.maximalVerified.map(c => Invariant.getConjunction(lattice.atomsOf(c), z3Solver)).toSet
+  }
+
+  private def templateInv(root: Block,
+                          loc: Block,
+                          graph: Graph[Block, DefaultEdge],
+                          vars: Vars,
+                          z3Solver: Z3Solver): Set[BoolExpr] = {
+    val inductive = if (GraphUtil.isInCycle(loc, graph)) Some(inductiveGraph(loc, graph)) else None
+    val invs = TemplateSynthesis.synthesize(vars, MAX_NUM_OF_INV, {
+      inv =>
+        val base = PredTrans.wlpProg(graph, inv, root, loc, vars, z3Solver).get(root)
+        val step = inductive match {
+          case Some((newGraph, newRoot)) =>
+            PredTrans.wlpProg(newGraph, inv, newRoot, loc, vars, z3Solver).get(newRoot).map(wlp2 => z3Solver.mkImplies(inv, wlp2))
+          case None => Some(z3Solver.mkTrue())
+        }
+        (base, step) match {
+          case (Some(b), Some(i)) => z3Solver.mkAnd(b, i)
+          case _ => z3Solver.mkFalse()
+        }
+    }, z3Solver)
+    if (DEBUG_GEN_NEW_INV) println("[Inv] # of synthesized invs: " + invs.size)
+    invs
+  }
+
   def inferLoopInv(loopHead: ConditionalBlock,
                    loopCond: Expr,
                    graph: Graph[Block, DefaultEdge],
@@ -145,16 +410,14 @@ object Invariant {
                    z3Solver: Z3Solver,
                    indent: Int = 0): Set[BoolExpr] = {
     val start = System.nanoTime()
-    val invGuess = LoopInvGuess(loopHead, loopCond, graph)
-    dp2.foreach({
-      case (invGuess_p, inv) =>
-        if (invGuess_p.equals(invGuess)) {
-          return inv
-        }
-    })
+    val invGuess = LoopInvGuess(loopHead.getId, loopCond, GraphUtil.fingerprint(graph), ConeOfInfluence.isEnabled(loopHead.getId))
+    Invariant.synchronized(dp2.get((invGuess, z3Solver))) match {
+      case Some(inv) => return inv
+      case None =>
+    }
 
     val newGraph = GraphUtil.cloneGraph(graph)
-    val exitBlk = new SpecialBlockImpl(SpecialBlockType.EXIT)
+    val exitBlk = GraphUtil.newSpecialBlock(SpecialBlockType.EXIT)
     newGraph.addVertex(exitBlk)
     val backEdges = newGraph.incomingEdgesOf(loopHead).asScala.toList
     val exitNodes = backEdges.map(e => newGraph.getEdgeSource(e))
@@ -162,35 +425,64 @@ object Invariant {
     newGraph.removeAllEdges(backEdges.asJava)
 
     val allVars = vars.allVars
-    val allInvs = genOctagonInv(allVars, z3Solver).subsets()
-      .filter(set => set.size <= MAX_NUM_OF_LOOP_INV)
-      .map(set => Invariant.getConjunction(set, z3Solver)).toSet
-    val invs = {
-      // val invs = removeFalseInvs(allInvs, allVars, z3Solver)
-      // removeWeakInvs(invs, allVars, z3Solver)
-      allInvs
+
+    def enumerateLoopInv(atomVars: Set[Expr]): Set[BoolExpr] = {
+      // Loop invariants do not have base cases, so no candidate is ruled out
+      val lattice = new CandidateLattice(prioritize(traceFilter(octagonAtoms(atomVars, z3Solver), loopHead), vars), MAX_NUM_OF_LOOP_INV)
+      lattice.explore({
+        candidates =>
+          val invs = candidates.map(c => Invariant.getConjunction(lattice.atomsOf(c), z3Solver))
+          SolverPool.mapChunks(invs.toList, z3Solver)({
+            (chunk, solver) =>
+              val myVars = vars.translate(solver)
+              val myLoopCond = solver.translate(loopCond)
+              val myInvs = chunk.map(candidate => solver.translate(candidate))
+              val inductive = checkForallBatch(myInvs.zip(wlpsOf(newGraph, loopHead, exitBlk, myInvs, myVars, solver)).map({
+                case (inv, wlp) => wlp.map(w => solver.mkImplies(inv, w))
+              }), myVars.allVars, solver, QueryKind.LOOP_INV, examplesOf(loopHead, QueryKind.LOOP_INV, solver), List(myLoopCond.asInstanceOf[BoolExpr]))
+              // Loop invariants do not have base cases, hence an unsatisfiable conjunction is vacuously inductive. It
+              // fails in place of a base case instead, which also rules out its supersets (that are unsatisfiable too)
+              myInvs.zip(inductive).map({
+                case (inv, ok) => if (ok) (solver.checkSAT(inv, QueryKind.LOOP_INV), true) else (true, false)
+              })
+          })
+      }, stopOf(loopHead))
+      if (DEBUG_GEN_NEW_INV) println("[LoopInv] # of vars: " + atomVars.size + "; # of checked invs: " + lattice.numOfChecked)
+      recordShapes(lattice.maximalVerified.flatMap(c => lattice.atomsOf(c)), vars)
+      lattice.maximalVerified.map(c => Invariant.getConjunction(lattice.atomsOf(c), z3Solver)).toSet
     }
 
-    if (DEBUG_GEN_NEW_INV) println("[LoopInv] # of vars: " + allVars.size + "; # of invs: " + invs.size)
-    val validInvs = invs.filter({
-      inv =>
-        PredTrans.wlpProg(newGraph, inv, loopHead, exitBlk, vars, z3Solver).get(loopHead) match {
-          case Some(wlp) =>
-            val implication = z3Solver.mkImplies(z3Solver.mkAnd(loopCond, inv), wlp)
-            val r = Invariant.checkForall(implication, allVars, z3Solver)
-            /*if (!r._1) {
-              println(inv)
-              println(r)
-              println()
-            }*/
-            r._1
-          case None => false
+    val facts = abstractFacts(loopHead, z3Solver)
+    if (Budget.isExhausted(loopHead.getId)) return HashSet(seed(z3Solver.mkTrue(), facts, z3Solver))
+    val validInvs = withConeOfInfluence(loopHead, ConeOfInfluence.withLoopExits(graph), vars)({
+      atomVars =>
+        if (INFERENCE_ENGINE == ABSTRACT && facts.nonEmpty) HashSet(getConjunction(facts, z3Solver))
+        else if (INFERENCE_ENGINE == HOUDINI) {
+          // Loop invariants do not have base cases, hence a contradictory hypothesis would make every atom inductive
+          val atoms = satisfiableSubset(prioritize(traceFilter(genOctagonInv(atomVars, z3Solver).toList, loopHead), vars), QueryKind.LOOP_INV, z3Solver)
+          val wlps = wlpsOf(newGraph, loopHead, exitBlk, atoms, vars, z3Solver)
+          val survivors = houdini(atoms, wlps, (h, solver) => List(solver.translate(loopCond).asInstanceOf[BoolExpr], h), allVars, QueryKind.LOOP_INV, z3Solver, () => Budget.isExhausted(loopHead.getId))
+          if (DEBUG_GEN_NEW_INV) println("[LoopInv] # of atoms: " + atoms.size + "; # of inductive atoms: " + survivors.size)
+          HashSet(getConjunction(survivors, z3Solver))
         }
-    })
+        else if (INFERENCE_ENGINE == TEMPLATE) {
+          val invs = TemplateSynthesis.synthesize(vars, MAX_NUM_OF_LOOP_INV, {
+            inv =>
+              PredTrans.wlpProg(newGraph, inv, loopHead, exitBlk, vars, z3Solver).get(loopHead)
+                .map(wlp => z3Solver.mkImplies(z3Solver.mkAnd(loopCond, inv), wlp))
+                .getOrElse(z3Solver.mkFalse())
+          }, z3Solver)
+          if (DEBUG_GEN_NEW_INV) println("[LoopInv] # of synthesized invs: " + invs.size)
+          if (invs.nonEmpty) invs else enumerateLoopInv(atomVars)
+        }
+        else enumerateLoopInv(atomVars)
+    }).map(inv => seed(inv, facts, z3Solver))
 
-    dp2 = (invGuess, validInvs) :: dp2
     val end = System.nanoTime()
-    TOTAL_TIME_LOOP_INV += (end - start).toDouble / Utils.NANO
+    Invariant.synchronized {
+      if (!Budget.isHit(loopHead.getId)) dp2 = dp2 + ((invGuess, z3Solver) -> validInvs)
+      TOTAL_TIME_LOOP_INV += (end - start).toDouble / Utils.NANO
+    }
 
     // Invariant.removeWeakInvs(validInvs, allVars, z3Solver)
     validInvs
@@ -205,6 +497,96 @@ object Invariant {
     }
   }
 
+  // The atom table of octagon invariants, where true is left out (because it is the empty conjunction)
+  private def octagonAtoms(vars: Set[Expr], z3Solver: Z3Solver): IndexedSeq[BoolExpr] = {
+    val t = z3Solver.mkTrue()
+    genOctagonInv(vars, z3Solver).filter(atom => atom != t).toIndexedSeq
+  }
+
+  // Infer invariants from atoms over the variables in the cone of influence of loc. Variables outside of the cone may
+  // still be needed (e.g. Zuleger2011bound), hence inference is repeated over all variables if only true is inferred,
+  // and again for the whole method if its bounds fail to verify (see ConeOfInfluence.disable)
+  private def withConeOfInfluence(loc: Block, graph: Graph[Block, DefaultEdge], vars: Vars)
+                                 (infer: Set[Expr] => Set[BoolExpr]): Set[BoolExpr] = {
+    if (!ConeOfInfluence.isEnabled(loc.getId)) infer(vars.allVars)
+    else {
+      val cone = ConeOfInfluence(loc, graph, vars)
+      val invs = infer(cone)
+      if (DEBUG_GEN_NEW_INV) println("[COI] # of vars: " + vars.allVars.size + "; # of vars in the cone: " + cone.size)
+      if (cone.size < vars.allVars.size && invs.forall(inv => inv.isTrue)) infer(vars.allVars)
+      else invs
+    }
+  }
+
+  // The octagon that AbstractInterpreter computes at the block (as atoms), which is empty if it is disabled
+  private def abstractFacts(loc: Block, z3Solver: Z3Solver): Set[BoolExpr] = {
+    if (!ABSTRACT_INTERPRETATION && INFERENCE_ENGINE != ABSTRACT) HashSet()
+    else AbstractInterpreter.factsAt(loc, z3Solver)
+  }
+
+  // Strengthen a verified invariant with the facts at the same block, which are valid (hence need no verification)
+  private def seed(inv: BoolExpr, facts: Set[BoolExpr], z3Solver: Z3Solver): BoolExpr = {
+    val conjunction = getConjunction(facts, z3Solver)
+    if (facts.isEmpty || inv == conjunction) inv
+    else if (inv.isTrue) conjunction
+    else getConjunction(facts + inv, z3Solver)
+  }
+
+  // Stop exploring candidates at the block once the budget of its method runs out (if the budget is limited)
+  private def stopOf(loc: Block): Option[() => Boolean] = {
+    Budget.of(loc.getId).filter(b => b.seconds < Double.PositiveInfinity).map(_ => () => Budget.isExhausted(loc.getId))
+  }
+
+  // Atoms ordered by how likely they are to be verified (i.e. how often atoms of the same shape are verified before),
+  // and then by how cheap they are (i.e. the number of variables they touch), such that candidates of likely and cheap
+  // atoms are checked first when the budget is limited
+  private def prioritize(atoms: Seq[BoolExpr], vars: Vars): IndexedSeq[BoolExpr] = {
+    val myShapes = Invariant.synchronized(shapes)
+    atoms.map({
+      atom =>
+        val (shape, numOfVars) = shapeOf(atom, vars)
+        (atom, (-myShapes.getOrElse(shape, 0), numOfVars))
+    }).sortBy({ case (_, score) => score }).map({ case (atom, _) => atom }).toIndexedSeq
+  }
+
+  private def recordShapes(atoms: Seq[BoolExpr], vars: Vars): Unit = {
+    val verified = atoms.map(atom => shapeOf(atom, vars)._1)
+    Invariant.synchronized(verified.foreach(shape => shapes += (shape -> (shapes.getOrElse(shape, 0) + 1))))
+  }
+
+  // The AST of an atom where every variable is replaced by its kind (i.e. argument, resource variable or local
+  // variable), together with the number of variables in the atom
+  private def shapeOf(atom: BoolExpr, vars: Vars): (String, Int) = {
+    def nameOf(v: Expr): String = v.getFuncDecl.getName.toString
+
+    val kinds: Map[String, String] = {
+      vars.locals.map(v => nameOf(v) -> "l") ++ vars.args.map(v => nameOf(v) -> "a") ++ vars.resVars.map(v => nameOf(v) -> "r")
+    }.toMap
+    var used = new HashSet[String]
+
+    def shape(e: Expr): String = {
+      if (e.isNumeral) e.toString
+      else if (e.isConst) {
+        val name = nameOf(e)
+        if (kinds.contains(name)) used += name
+        kinds.getOrElse(name, name)
+      }
+      else e.getFuncDecl.getDeclKind + e.getArgs.map(arg => shape(arg)).mkString("(", ",", ")")
+    }
+
+    val res = shape(atom)
+    (res, used.size)
+  }
+
+  private def traceFilter(atoms: Seq[BoolExpr], loc: Block): Seq[BoolExpr] = {
+    if (!TRACE_FILTER) atoms
+    else {
+      val survivors = Interpreter.filter(atoms, loc)
+      if (DEBUG_GEN_NEW_INV) println("[Trace] # of atoms: " + atoms.size + "; # of atoms that no trace falsifies: " + survivors.size)
+      survivors
+    }
+  }
+
   def genOctagonInv(vars: Set[Expr], z3Solver: Z3Solver): Set[BoolExpr] = {
     val coeff = HashSet[Int](-1, 1)
     val constants = {
@@ -212,7 +594,8 @@ object Invariant {
       pos.map(n => -n) ++ pos
     }
 
-    vars.zipWithIndex.foldLeft(new HashMap[String, BoolExpr])({
+    // Atoms are hash-consed by z3Solver, and equal ASTs are equal BoolExprs, so there is no need to compare strings
+    vars.zipWithIndex.foldLeft(new HashSet[BoolExpr])({
       case (acc, (var1, idx1)) =>
         vars.zipWithIndex.foldLeft(acc)({
           case (accp, (var2, idx2)) =>
@@ -236,17 +619,17 @@ object Invariant {
 
                                 (Utils.getResVarName(var1.toString), Utils.getResVarName(var2.toString)) match {
                                   case (Some(_), Some(_)) =>
-                                    acc3 + (le.toString -> le) + (lt.toString -> lt)
+                                    acc3 + le + lt
                                   case (Some(_), None) =>
-                                    // acc3 + (le.toString -> le) + (lt.toString -> lt)
+                                    // acc3 + le + lt
                                     if (c1 < 0) acc3
-                                    else acc3 + (le.toString -> le) + (lt.toString -> lt)
+                                    else acc3 + le + lt
                                   case (None, Some(_)) =>
-                                    // acc3 + (le.toString -> le) + (lt.toString -> lt)
+                                    // acc3 + le + lt
                                     if (c2 < 0) acc3
-                                    else acc3 + (le.toString -> le) + (lt.toString -> lt)
+                                    else acc3 + le + lt
                                   case (None, None) =>
-                                    acc3 + (le.toString -> le) + (lt.toString -> lt)
+                                    acc3 + le + lt
                                 }
                               }
                           })
@@ -257,7 +640,7 @@ object Invariant {
             }
             else accp
         })
-    }).values.toSet + z3Solver.mkTrue()
+    }) + z3Solver.mkTrue()
     /*else {
       // When debugging using this branch, keep in mind that while the following invariant will be included
       // in all invocation to this method, if we are not using this branch, the following invariant might not
@@ -358,14 +741,92 @@ object Invariant {
   }
 
   // Return true iff. the assertion is valid
-  def checkForall(assertion: BoolExpr, allVars: Set[Expr], z3Solver: Z3Solver): (Boolean, BoolExpr) = {
-    val toCheck = {
+  def checkForall(assertion: BoolExpr,
+                  allVars: Set[Expr],
+                  z3Solver: Z3Solver,
+                  kind: QueryKind.Value = QueryKind.OTHER): (Boolean, BoolExpr) = {
+    val toCheck = negateForall(assertion, allVars, z3Solver)
+    val res = z3Solver.checkSAT(toCheck, kind)
+    (!res, toCheck)
+  }
+
+  // Return true iff. the assertion is valid under the assumptions (which are shared by all assertions), for each
+  // assertion that exists (otherwise return false)
+  def checkForallBatch(assertions: Seq[Option[BoolExpr]],
+                       allVars: Set[Expr],
+                       z3Solver: Z3Solver,
+                       kind: QueryKind.Value = QueryKind.OTHER,
+                       examples: Option[Counterexamples] = None,
+                       assumptions: Seq[BoolExpr] = Nil): Seq[Boolean] = {
+    def withAssumptions(assertion: BoolExpr): BoolExpr = {
+      if (assumptions.isEmpty) assertion
+      else z3Solver.mkImplies(getConjunction(assumptions, z3Solver), assertion)
+    }
+
+    examples match {
+      case Some(e) => return assertions.map(assertion => assertion.exists(a => checkForallWith(withAssumptions(a), z3Solver, kind, e)))
+      case None =>
+    }
+    // The negation of forall vars. assumptions => assertion is satisfiable iff. assumptions /\ !assertion is (where vars
+    // are free), hence the assumptions are asserted once for the whole batch, instead of under the quantifier of each
+    // assertion
+    val res = {
+      if (assumptions.nonEmpty) z3Solver.checkSATBatch(assertions.flatten.map(assertion => z3Solver.mkNot(assertion)), assumptions, kind)
+      else z3Solver.checkSATBatch(assertions.flatten.map(assertion => negateForall(assertion, allVars, z3Solver)), kind = kind)
+    }
+    assertions.foldLeft((List[Boolean](), res))({
+      case ((acc, remaining), Some(_)) => (!remaining.head :: acc, remaining.tail)
+      case ((acc, remaining), None) => (false :: acc, remaining)
+    })._1.reverse
+  }
+
+  // Check the Skolemized negation of the assertion (whose free variables are existentially quantified), such that a
+  // model of it is a counterexample that assigns the variables
+  private def checkForallWith(assertion: BoolExpr, z3Solver: Z3Solver, kind: QueryKind.Value, examples: Counterexamples): Boolean = {
+    val negation = z3Solver.mkNot(assertion)
+    if (examples.refutes(negation)) false
+    else {
+      z3Solver.findModel(negation, kind) match {
+        case Some(model) =>
+          examples.add(model)
+          false
+        case None => true
+      }
+    }
+  }
+
+  private def examplesOf(loc: Block, kind: QueryKind.Value, z3Solver: Z3Solver): Option[Counterexamples] = {
+    if (!COUNTEREXAMPLES) None
+    else {
+      Invariant.synchronized {
+        val key = (loc.getId, kind, z3Solver)
+        examples.get(key) match {
+          case Some(e) => Some(e)
+          case None =>
+            val e = new Counterexamples(Counterexamples.MAX_NUM_OF_COUNTEREXAMPLES)
+            examples += (key -> e)
+            Some(e)
+        }
+      }
+    }
+  }
+
+  private def negateForall(assertion: BoolExpr, allVars: Set[Expr], z3Solver: Z3Solver): BoolExpr = {
+    if (QUANTIFIER_FREE_VC) z3Solver.mkNot(assertion)
+    else {
       z3Solver.mkNot(
         z3Solver.mkForall(allVars.toArray, assertion)
       )
     }
-    val res = z3Solver.checkSAT(toCheck)
-    (!res, toCheck)
+  }
+
+  // Forget the invariants that are memoized for a solver, e.g. before it is reused or closed
+  def purge(z3Solver: Z3Solver): Unit = {
+    Invariant.synchronized {
+      dp1 = dp1.filter({ case ((_, solver), _) => solver ne z3Solver })
+      dp2 = dp2.filter({ case ((_, solver), _) => solver ne z3Solver })
+      examples = examples.filter({ case ((_, _, solver), _) => solver ne z3Solver })
+    }
   }
 
   def getConjunction(invs: Iterable[BoolExpr], z3Solver: Z3Solver): BoolExpr = {
@@ -377,6 +838,7 @@ object Invariant {
   def printTime(): Unit = {
     Utils.printYellowString("Invariant inference's total time is: " + ("%.3f" format TOTAL_TIME_INV) + "s")
     Utils.printYellowString("Loop invariant inference's total time is: " + ("%.3f" format TOTAL_TIME_LOOP_INV) + "s")
+    if (COUNTEREXAMPLES) Utils.printYellowString("# of candidates that are refuted by counterexamples: " + Counterexamples.TOTAL_REFUTED)
   }
 
   // Cause more unnecessary z3 queries
@@ -385,7 +847,7 @@ object Invariant {
     // that satisfies it), then any reasoning afterwards does not make sense
     val ret = invs.filter({
       inv =>
-        val exists = z3Solver.mkExists(allVars.toArray, inv)
+        val exists = if (QUANTIFIER_FREE_VC) inv else z3Solver.mkExists(allVars.toArray, inv)
         z3Solver.checkSAT(exists)
     })
     Utils.printYellowString("[Remove false predicates] We reduced the # of predicates from " + invs.size + " to " + ret.size)
@@ -433,27 +895,9 @@ object Invariant {
   }
 }
 
-case class InvGuess(loc: Block, graph: Graph[Block, DefaultEdge]) {
-  override def equals(obj: Any): Boolean = {
-    obj match {
-      case guess: InvGuess =>
-        val r1 = loc == guess.loc
-        val r2 = GraphUtil.isSameGraph(graph, guess.graph)
-        r1 && r2
-      case _ => false
-    }
-  }
-}
+// Z3Solver is compared by reference (as a key of dp1 and dp2). Invariants over the cone of influence are kept apart
+// from those over all variables
+case class InvGuess(loc: Long, graph: GraphFingerprint, cone: Boolean)
 
-case class LoopInvGuess(loopHead: ConditionalBlock, loopCond: Expr, graph: Graph[Block, DefaultEdge]) {
-  override def equals(obj: Any): Boolean = {
-    obj match {
-      case guess: LoopInvGuess =>
-        val r1 = loopHead == guess.loopHead
-        var r2 = loopCond.toString == guess.loopCond.toString
-        val r3 = GraphUtil.isSameGraph(graph, guess.graph)
-        r1 && r2 && r3
-      case _ => false
-    }
-  }
-}
\ No newline at end of file
+// Loop conditions are compared as ASTs (i.e. by structure), because they belong to the same solver
+case class LoopInvGuess(loopHead: Long, loopCond: Expr, graph: GraphFingerprint, cone: Boolean)
@@ -0,0 +1,74 @@
+package analysis
+
+import com.microsoft.z3.{BoolExpr, Expr, Model, Status}
+
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+/**
+  *
+  * @param z3Solver   the solver whose context the assertions belong to
+  * @param assertions the assertions that all models satisfy
+  * @param projection the variables on which any two models differ
+  * @param cap        the maximum number of models
+  * @param batchSize  the number of models that are computed whenever the buffer is empty
+  */
+// Models are enumerated lazily on a solver of their own, such that blocking clauses never reach z3Solver.solver.
+// Blocking clauses are asserted in a scope, which is popped once the enumeration ends (or close is called)
+class ModelIterator(z3Solver: Z3Solver,
+                    assertions: Seq[BoolExpr],
+                    projection: Seq[Expr],
+                    cap: Int,
+                    batchSize: Int) extends Iterator[Model] {
+  assert(projection.nonEmpty && cap >= 0 && batchSize > 0)
+
+  private val profile = SolverProfile.of(QueryKind.MODEL)
+  // Models are only available from the native backend
+  private var solver: Option[NativeBackend] = {
+    val s = new NativeBackend(profile.mkSolver(z3Solver.ctx))
+    s.push()
+    s.add(assertions: _*)
+    Some(s)
+  }
+  private val buffer = new mutable.Queue[Model]
+  private var numOfModels = 0
+
+  private def fill(): Unit = {
+    var i = 0
+    while (i < batchSize && solver.isDefined) {
+      if (numOfModels >= cap) close()
+      else {
+        val s = solver.get
+        z3Solver.checkStatus(s, profile, QueryKind.MODEL, 0) match {
+          case Status.SATISFIABLE =>
+            val model = s.solver.getModel
+            buffer.enqueue(model)
+            numOfModels += 1
+            // Block the valuation of the projection variables
+            val blocking = projection.map(v => z3Solver.mkNe(v, model.eval(v, true)))
+            s.add(if (blocking.size == 1) blocking.head else z3Solver.mkOr(blocking: _*))
+          case _ => close() // There are no more models (or Z3 gives up)
+        }
+      }
+      i += 1
+    }
+  }
+
+  override def hasNext: Boolean = {
+    if (buffer.isEmpty) fill()
+    buffer.nonEmpty
+  }
+
+  override def next(): Model = {
+    if (!hasNext) throw new NoSuchElementException
+    buffer.dequeue()
+  }
+
+  // Stop the enumeration and drop the blocking clauses. Buffered models can still be retrieved
+  def close(): Unit = {
+    solver.foreach(s => s.pop())
+    solver = None
+  }
+}
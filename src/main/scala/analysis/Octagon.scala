@@ -0,0 +1,245 @@
+package analysis
+
+/**
+  * @author Tianhan Lu
+  */
+/**
+  *
+  * @param n        the number of (integer) variables
+  * @param m        a difference bound matrix over 2n variables, where variable 2i is x_i and variable 2i+1 is -x_i, and
+  *                 m(i)(j) is an upper bound of v_j - v_i (Octagon.INF if there is none)
+  * @param isBottom whether the octagon is empty
+  */
+// The octagon abstract domain (Mine, "The octagon abstract domain"), whose constraints are +/-x_i +/-x_j <= c. Operations
+// return new octagons. Octagons are closed (i.e. every bound is the tightest one that the constraints imply), except for
+// the results of widen, which must not be closed to guarantee termination
+class Octagon private(val n: Int, private val m: Array[Array[Long]], val isBottom: Boolean) {
+
+  import Octagon._
+
+  // The index of s*x_i (where s is 1 or -1) among the 2n variables
+  private def pos(i: Int, s: Int): Int = if (s > 0) 2 * i else 2 * i + 1
+
+  private def copy: Array[Array[Long]] = m.map(row => row.clone())
+
+  // The upper bound of a*x_i + b*x_j (where a and b are 1 or -1), or None if it is unbounded
+  def upper(i: Int, a: Int, j: Int, b: Int): Option[Long] = {
+    if (isBottom) None
+    else if (i == j) {
+      if (a == b) upper(i, a).map(c => 2 * c) else Some(0)
+    }
+    else {
+      val c = m(pos(j, -b))(pos(i, a))
+      if (c >= INF) None else Some(c)
+    }
+  }
+
+  // The upper bound of a*x_i (where a is 1 or -1), or None if it is unbounded
+  def upper(i: Int, a: Int): Option[Long] = {
+    if (isBottom) None
+    else {
+      val c = m(pos(i, -a))(pos(i, a))
+      if (c >= INF) None else Some(Math.floorDiv(c, 2L))
+    }
+  }
+
+  def lower(i: Int): Option[Long] = upper(i, -1).map(c => -c)
+
+  def upper(i: Int): Option[Long] = upper(i, 1)
+
+  // Add a*x_i + b*x_j <= c (where a and b are 1 or -1)
+  def addConstraint(i: Int, a: Int, j: Int, b: Int, c: Long): Octagon = {
+    if (isBottom) this
+    else if (i == j) {
+      if (a == b) addConstraint(i, a, Math.floorDiv(c, 2L))
+      else if (c < 0) bottom(n)
+      else this
+    }
+    else {
+      val mp = copy
+      tighten(mp, pos(j, -b), pos(i, a), c)
+      close(n, mp)
+    }
+  }
+
+  // Add a*x_i <= c (where a is 1 or -1)
+  def addConstraint(i: Int, a: Int, c: Long): Octagon = {
+    if (isBottom) this
+    else {
+      val mp = copy
+      tighten(mp, pos(i, -a), pos(i, a), 2 * c)
+      close(n, mp)
+    }
+  }
+
+  // Remove all constraints about x_i
+  def forget(i: Int): Octagon = {
+    if (isBottom) this
+    else {
+      val mp = copy
+      (0 until 2 * n).foreach({
+        k =>
+          List(2 * i, 2 * i + 1).foreach({
+            v =>
+              if (k != v) {
+                mp(k)(v) = INF
+                mp(v)(k) = INF
+              }
+          })
+      })
+      new Octagon(n, mp, false)
+    }
+  }
+
+  // x_i := a*x_j + c (where a is 1 or -1)
+  def assign(i: Int, a: Int, j: Int, c: Long): Octagon = {
+    if (isBottom) this
+    else if (i == j) {
+      if (a > 0) shift(i, c)
+      else {
+        // There is no exact transfer function, hence only the bounds of x_i are kept
+        val (lo, hi) = (upper(i).map(u => c - u), lower(i).map(l => c - l))
+        forget(i).assignInterval(i, lo, hi)
+      }
+    }
+    else {
+      forget(i).addConstraint(i, 1, j, -a, c).addConstraint(i, -1, j, a, -c)
+    }
+  }
+
+  // x_i := a value in [lo, hi], where None is unbounded
+  def assignInterval(i: Int, lo: Option[Long], hi: Option[Long]): Octagon = {
+    val forgotten = forget(i)
+    val withUpper = hi match {
+      case Some(h) => forgotten.addConstraint(i, 1, h)
+      case None => forgotten
+    }
+    lo match {
+      case Some(l) => withUpper.addConstraint(i, -1, -l)
+      case None => withUpper
+    }
+  }
+
+  // x_i := x_i + c
+  private def shift(i: Int, c: Long): Octagon = {
+    val mp = copy
+    val (p, q) = (2 * i, 2 * i + 1)
+    (0 until 2 * n).foreach({
+      k =>
+        if (k != p && k != q) {
+          mp(k)(p) = add(mp(k)(p), c)
+          mp(p)(k) = add(mp(p)(k), -c)
+          mp(k)(q) = add(mp(k)(q), -c)
+          mp(q)(k) = add(mp(q)(k), c)
+        }
+    })
+    mp(q)(p) = add(mp(q)(p), 2 * c)
+    mp(p)(q) = add(mp(p)(q), -2 * c)
+    new Octagon(n, mp, false)
+  }
+
+  def join(that: Octagon): Octagon = {
+    if (isBottom) that
+    else if (that.isBottom) this
+    else new Octagon(n, Array.tabulate(2 * n, 2 * n)((i, j) => Math.max(m(i)(j), that.m(i)(j))), false)
+  }
+
+  // Drop the bounds of this that that does not satisfy
+  def widen(that: Octagon): Octagon = {
+    if (isBottom) that
+    else if (that.isBottom) this
+    else new Octagon(n, Array.tabulate(2 * n, 2 * n)((i, j) => if (that.m(i)(j) <= m(i)(j)) m(i)(j) else INF), false)
+  }
+
+  def leq(that: Octagon): Boolean = {
+    if (isBottom) true
+    else if (that.isBottom) false
+    else (0 until 2 * n).forall(i => (0 until 2 * n).forall(j => m(i)(j) <= that.m(i)(j)))
+  }
+
+  override def equals(obj: Any): Boolean = {
+    obj match {
+      case that: Octagon => n == that.n && leq(that) && that.leq(this)
+      case _ => false
+    }
+  }
+
+  override def hashCode(): Int = if (isBottom) 0 else m.map(row => java.util.Arrays.hashCode(row)).toList.hashCode()
+
+  /**
+    *
+    * @return the finite constraints, each of which is (i, a, j, b, c) that stands for a*x_i + b*x_j <= c, where j is -1
+    *         (and b is 0) for constraints of a single variable
+    */
+  def constraints: List[(Int, Int, Int, Int, Long)] = {
+    if (isBottom) Nil
+    else {
+      val unary = (0 until n).toList.flatMap(i => List(1, -1).flatMap(a => upper(i, a).map(c => (i, a, -1, 0, c))))
+      val binary = for {
+        i <- (0 until n).toList
+        j <- (i + 1 until n).toList
+        a <- List(1, -1)
+        b <- List(1, -1)
+        c <- upper(i, a, j, b).toList
+      } yield (i, a, j, b, c)
+      unary ++ binary
+    }
+  }
+
+  override def toString: String = {
+    if (isBottom) "bottom"
+    else constraints.map({
+      case (i, a, -1, _, c) => (if (a > 0) "" else "-") + "x" + i + " <= " + c
+      case (i, a, j, b, c) => (if (a > 0) "" else "-") + "x" + i + (if (b > 0) " + " else " - ") + "x" + j + " <= " + c
+    }).mkString("{", ", ", "}")
+  }
+}
+
+object Octagon {
+  val INF: Long = Long.MaxValue / 4
+
+  def top(n: Int): Octagon = new Octagon(n, Array.tabulate(2 * n, 2 * n)((i, j) => if (i == j) 0 else INF), false)
+
+  def bottom(n: Int): Octagon = new Octagon(n, Array.ofDim[Long](0, 0), true)
+
+  private def add(x: Long, y: Long): Long = if (x >= INF || y >= INF) INF else Math.min(x + y, INF)
+
+  // Add v_j - v_i <= c, together with its coherent form -v_i - (-v_j) <= c
+  private def tighten(m: Array[Array[Long]], i: Int, j: Int, c: Long): Unit = {
+    m(i)(j) = Math.min(m(i)(j), c)
+    m(j ^ 1)(i ^ 1) = Math.min(m(j ^ 1)(i ^ 1), c)
+  }
+
+  // The tight closure of integer octagons (Floyd-Warshall, followed by strengthening)
+  private def close(n: Int, m: Array[Array[Long]]): Octagon = {
+    val size = 2 * n
+    (0 until size).foreach({
+      k =>
+        (0 until size).foreach({
+          i =>
+            if (m(i)(k) < INF) {
+              (0 until size).foreach({
+                j =>
+                  val c = add(m(i)(k), m(k)(j))
+                  if (c < m(i)(j)) m(i)(j) = c
+              })
+            }
+        })
+    })
+    // Bounds of 2*x_i are even for integers
+    (0 until size).foreach(i => if (m(i)(i ^ 1) < INF) m(i)(i ^ 1) = 2 * Math.floorDiv(m(i)(i ^ 1), 2L))
+    (0 until size).foreach({
+      i =>
+        (0 until size).foreach({
+          j =>
+            val c = add(m(i)(i ^ 1), m(j ^ 1)(j))
+            if (c < INF && Math.floorDiv(c, 2L) < m(i)(j)) m(i)(j) = Math.floorDiv(c, 2L)
+        })
+    })
+    if ((0 until size).exists(i => m(i)(i) < 0)) bottom(n)
+    else {
+      (0 until size).foreach(i => m(i)(i) = 0)
+      new Octagon(n, m, false)
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package analysis
+
+import com.microsoft.z3._
+import utils.Utils
+
+/**
+  * @author Tianhan Lu
+  */
+// The optimal value of an objective
+sealed trait OptValue
+
+case class Finite(value: BigInt) extends OptValue
+
+case object PosInfinity extends OptValue
+
+case object NegInfinity extends OptValue
+
+case object Infeasible extends OptValue // The assertions are unsatisfiable
+
+case object Unknown extends OptValue // E.g. timeouts, or the optimum is not an integer
+
+/**
+  *
+  * @param ctx     the context that all assertions and objectives belong to
+  * @param profile the profile whose timeout applies (logics and tactics do not apply to optimization)
+  */
+// A persistent optimization session. Assertions are added incrementally and scoped by push and pop, such that
+// many objectives can be optimized over the same assertions without rebuilding the optimizer
+class OptimizeSession(ctx: Context, profile: SolverProfile) {
+  private val opt: Optimize = {
+    val opt = ctx.mkOptimize
+    val params = ctx.mkParams()
+    params.add("timeout", profile.timeout)
+    // Optimize each objective independently (instead of lexicographically)
+    params.add("priority", "box")
+    opt.setParameters(params)
+    opt
+  }
+
+  private var numOfScopes = 0
+
+  private val tracker = new StatisticsTracker
+
+  def depth: Int = numOfScopes
+
+  def add(assertions: BoolExpr*): Unit = opt.Add(assertions: _*)
+
+  def push(): Unit = {
+    opt.Push()
+    numOfScopes += 1
+  }
+
+  def pop(): Unit = {
+    assert(numOfScopes > 0)
+    opt.Pop()
+    numOfScopes -= 1
+  }
+
+  /**
+    *
+    * @param objectives the objectives to optimize, each of which is paired with whether to maximize (or minimize) it
+    * @param assumptions the assertions that only hold for this call
+    * @return the optimal value of each objective, in the same order as objectives
+    */
+  def optimize(objectives: Seq[(Expr, Boolean)], assumptions: Seq[BoolExpr] = Nil): Seq[OptValue] = {
+    push()
+    try {
+      if (assumptions.nonEmpty) add(assumptions: _*)
+      // Objectives are scoped as well, hence removed by pop
+      val handles = objectives.map({ case (obj, max) => (if (max) opt.MkMaximize(obj) else opt.MkMinimize(obj), max) })
+      val start = System.nanoTime()
+      val status = opt.Check()
+      val end = System.nanoTime()
+      val time = (end - start).toDouble / Utils.NANO
+      Z3Solver.recordTime(profile, time)
+      SolverMetrics.recordQuery(
+        QueryKind.OPTIMIZE,
+        time,
+        status,
+        if (status == Status.UNKNOWN) opt.getReasonUnknown else "",
+        objectives.map({ case (obj, _) => SolverMetrics.sizeOf(obj) }).sum,
+        if (SolverMetrics.Z3_STATISTICS) Some(tracker.delta(opt.getStatistics)) else None
+      )
+      status match {
+        case Status.SATISFIABLE => handles.map({ case (handle, max) => OptimizeSession.valueOf(handle, max) })
+        case Status.UNSATISFIABLE => objectives.map(_ => Infeasible)
+        case Status.UNKNOWN => objectives.map(_ => Unknown)
+      }
+    } finally {
+      pop()
+    }
+  }
+
+  def maximize(obj: Expr): OptValue = optimize(List((obj, true))).head
+
+  def minimize(obj: Expr): OptValue = optimize(List((obj, false))).head
+}
+
+object OptimizeSession {
+  // Z3 represents a bound as (infinity coefficient, value, epsilon coefficient)
+  private def valueOf(handle: Optimize.Handle, max: Boolean): OptValue = {
+    val vector = if (max) handle.getUpperAsVector else handle.getLowerAsVector
+    val inf = vector(0) match {
+      case n: IntNum => n.getBigInteger.signum()
+      case n: RatNum => n.getNumerator.getBigInteger.signum()
+      case _ => 0
+    }
+    if (inf > 0) PosInfinity
+    else if (inf < 0) NegInfinity
+    else vector(1) match {
+      case value: IntNum => Finite(BigInt(value.getBigInteger))
+      case value: RatNum if value.getDenominator.getBigInteger.equals(java.math.BigInteger.ONE) =>
+        Finite(BigInt(value.getNumerator.getBigInteger))
+      case _ => Unknown
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package analysis
+
+import java.io.File
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+
+import com.microsoft.z3.{Expr, Quantifier, Version}
+import utils.Utils
+
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+/**
+  *
+  * @param file       the cache file, which is created if it does not exist
+  * @param numOfSlots the number of results that the file holds
+  */
+// SAT results that are kept in a memory-mapped file across runs (and shared by concurrent processes). The file is an
+// open-addressing hash table of 128-bit digests (see PersistentCache.digestOf), where a digest is looked for in
+// PROBE_LENGTH consecutive slots, and the least recently used one of them is evicted if they are all taken. Every
+// operation holds a lock on the whole file, hence processes never see a partially written slot
+class PersistentCache(val file: File, val numOfSlots: Int) {
+
+  import PersistentCache._
+
+  private val channel = FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+  private val buffer: MappedByteBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + numOfSlots.toLong * SLOT_SIZE)
+
+  var hits: Int = 0
+  var misses: Int = 0
+
+  locked({
+    // A file that is created by another version (or with another number of slots) is started over
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION || buffer.getInt(8) != numOfSlots) {
+      (0 until HEADER_SIZE + numOfSlots * SLOT_SIZE by 8).foreach(i => buffer.putLong(i, 0L))
+      buffer.putInt(0, MAGIC)
+      buffer.putInt(4, FORMAT_VERSION)
+      buffer.putInt(8, numOfSlots)
+    }
+  })
+
+  // Threads of this process are serialized by the monitor, and processes are serialized by the file lock (which is
+  // held by the whole process, hence can not be taken twice)
+  private def locked[T](op: => T): T = {
+    this.synchronized {
+      val lock = channel.lock()
+      try op
+      finally lock.release()
+    }
+  }
+
+  private def offsetOf(slot: Int): Int = HEADER_SIZE + slot * SLOT_SIZE
+
+  private def tick(): Long = {
+    val clock = buffer.getLong(CLOCK_OFFSET) + 1
+    buffer.putLong(CLOCK_OFFSET, clock)
+    clock
+  }
+
+  private def slotsOf(digest: Digest): Seq[Int] = {
+    val start = Math.floorMod(digest.hi, numOfSlots.toLong).toInt
+    (0 until Math.min(PROBE_LENGTH, numOfSlots)).map(i => (start + i) % numOfSlots)
+  }
+
+  def get(digest: Digest): Option[Boolean] = {
+    locked({
+      val res = slotsOf(digest).map(slot => offsetOf(slot)).find({
+        offset => buffer.get(offset + STATE_OFFSET) == EMPTY || (buffer.getLong(offset) == digest.hi && buffer.getLong(offset + 8) == digest.lo)
+      }) match {
+        case Some(offset) if buffer.get(offset + STATE_OFFSET) != EMPTY =>
+          buffer.putLong(offset + STAMP_OFFSET, tick())
+          Some(buffer.get(offset + STATE_OFFSET) == SAT)
+        case _ => None
+      }
+      if (res.isDefined) hits += 1 else misses += 1
+      res
+    })
+  }
+
+  def put(digest: Digest, res: Boolean): Unit = {
+    locked({
+      val offsets = slotsOf(digest).map(slot => offsetOf(slot))
+      val offset = offsets.find({
+        offset => buffer.get(offset + STATE_OFFSET) == EMPTY || (buffer.getLong(offset) == digest.hi && buffer.getLong(offset + 8) == digest.lo)
+      }) match {
+        case Some(o) => o
+        case None => offsets.minBy(o => buffer.getLong(o + STAMP_OFFSET)) // Evict the least recently used result
+      }
+      if (buffer.get(offset + STATE_OFFSET) == EMPTY) buffer.putInt(SIZE_OFFSET, buffer.getInt(SIZE_OFFSET) + 1)
+      // The slot is emptied while it is rewritten, such that a crash in between never pairs the new digest with the
+      // old result
+      buffer.put(offset + STATE_OFFSET, EMPTY)
+      buffer.putLong(offset, digest.hi)
+      buffer.putLong(offset + 8, digest.lo)
+      buffer.putLong(offset + STAMP_OFFSET, tick())
+      buffer.put(offset + STATE_OFFSET, if (res) SAT else UNSAT)
+    })
+  }
+
+  // The number of results in the file
+  def size: Int = locked(buffer.getInt(SIZE_OFFSET))
+
+  def close(): Unit = {
+    buffer.force()
+    channel.close()
+  }
+}
+
+case class Digest(hi: Long, lo: Long)
+
+object PersistentCache {
+  // E.g. -Dboundchecker.cache=/tmp/boundchecker.cache. There is no persistent cache by default
+  val PATH: Option[String] = sys.props.get("boundchecker.cache")
+  // Each slot takes SLOT_SIZE bytes, hence the file takes 8MB by default
+  val NUM_OF_SLOTS: Int = sys.props.get("boundchecker.cache.slots").map(s => s.toInt).getOrElse(1 << 18)
+  val PROBE_LENGTH = 8
+
+  private val MAGIC = 0x42434348 // "BCCH"
+  // Increase this whenever the encoding of queries changes, such that results of older encodings are not used
+  private val FORMAT_VERSION = 1
+
+  // Header: magic, format version, # of slots, # of results, clock (for recency)
+  private val SIZE_OFFSET = 12
+  private val CLOCK_OFFSET = 16
+  private val HEADER_SIZE = 24
+  // Slot: digest (16 bytes), time of the last use (8 bytes), state (1 byte), padding
+  private val STAMP_OFFSET = 16
+  private val STATE_OFFSET = 24
+  private val SLOT_SIZE = 32
+
+  private val EMPTY: Byte = 0
+  private val UNSAT: Byte = 1
+  private val SAT: Byte = 2
+
+  // The cache of this process, which is None if it is disabled or can not be opened
+  lazy val instance: Option[PersistentCache] = {
+    PATH.flatMap({
+      path =>
+        try {
+          val file = new File(path)
+          if (file.getParentFile != null) file.getParentFile.mkdirs()
+          Some(new PersistentCache(file, NUM_OF_SLOTS))
+        } catch {
+          case ex: Exception =>
+            Utils.printRedString("[Exception] Open the query cache " + path + ": " + ex.getMessage)
+            None
+        }
+    })
+  }
+
+  /**
+    *
+    * @param expr    the query
+    * @param isFresh whether a constant (identified by its name) is a fresh variable
+    * @param config  the configuration of the solver that checks the query (e.g. its profile)
+    * @return a digest that only depends on the structure of expr (like QueryCache.keyOf, but without AST ids, which
+    *         differ across runs) and the configuration, including the version of Z3
+    */
+  def digestOf(expr: Expr, isFresh: String => Boolean, config: String): Digest = {
+    val md = MessageDigest.getInstance("MD5")
+    // AST id -> the order in which its encoding starts
+    val visited = new mutable.HashMap[Int, Int]
+    // Name of a fresh variable -> the order of its first occurrence
+    val freshVars = new mutable.HashMap[String, Int]
+
+    def emit(s: String): Unit = {
+      md.update(s.getBytes(StandardCharsets.UTF_8))
+      md.update(0: Byte)
+    }
+
+    emit(FORMAT_VERSION + ":" + Version.getFullVersion + ":" + config)
+
+    def encode(e: Expr): Unit = {
+      val id = e.getId
+      visited.get(id) match {
+        case Some(order) => emit("ref " + order)
+        case None =>
+          visited.put(id, visited.size)
+          if (e.isVar) emit("var " + e.getIndex + " " + e.getSort)
+          else if (e.isQuantifier) {
+            val q = e.asInstanceOf[Quantifier]
+            emit("quantifier " + q.isUniversal + " " + q.getBoundVariableSorts.mkString(" "))
+            encode(q.getBody)
+          }
+          else if (e.isConst && isFresh(e.getFuncDecl.getName.toString)) {
+            val name = e.getFuncDecl.getName.toString
+            emit("fresh " + freshVars.getOrElseUpdate(name, freshVars.size) + " " + e.getSort)
+          }
+          else if (e.isNumeral) emit("numeral " + e + " " + e.getSort)
+          else {
+            val args = e.getArgs
+            emit("app " + e.getFuncDecl.getName + " " + e.getFuncDecl.getDeclKind + " " + e.getSort + " " + args.length)
+            args.foreach(arg => encode(arg))
+          }
+      }
+    }
+
+    encode(expr)
+    val bytes = md.digest()
+    val hi = (0 until 8).foldLeft(0L)((acc, i) => (acc << 8) | (bytes(i) & 0xff))
+    val lo = (8 until 16).foldLeft(0L)((acc, i) => (acc << 8) | (bytes(i) & 0xff))
+    Digest(hi, lo)
+  }
+
+  def printStats(): Unit = {
+    instance.foreach({
+      cache =>
+        Utils.printRedString("Persistent query cache " + cache.file.getPath + " has " + cache.size + " results (" + cache.hits + " hits and " + cache.misses + " misses in this run)")
+    })
+  }
+}
@@ -3,6 +3,7 @@ package analysis
 import boundchecker.Vars
 import com.microsoft.z3.{BoolExpr, Expr}
 import com.sun.source.tree._
+import com.sun.source.util.TreeScanner
 import javax.lang.model.`type`.{TypeKind, TypeMirror}
 import org.checkerframework.dataflow.cfg.block.SpecialBlock.SpecialBlockType
 import org.checkerframework.dataflow.cfg.block._
@@ -38,10 +39,10 @@ object PredTrans {
       assert(inEdges.size == 1, "Conditional block " + block.getId + "'s incoming edges are: " + inEdges.toString())
       graph.getEdgeSource(inEdges.head) match {
         case reg: RegularBlock =>
-          reg.getContents.asScala.last.getTree match {
-            case expTree: ExpressionTree => transExpr(expTree, z3Solver).asInstanceOf[BoolExpr]
+          branchTree(block, graph) match {
+            case Some(expTree: ExpressionTree) => transExpr(expTree, z3Solver).asInstanceOf[BoolExpr]
             case x@_ =>
-              if (x.toString.contains("assertionsEnabled")) z3Solver.mkTrue()
+              if (x.exists(tree => isAssertionsEnabled(tree))) z3Solver.mkTrue()
               else {
                 assert(false, "Unexpected loop conditional: " + x.toString)
                 z3Solver.mkTrue()
@@ -408,7 +409,7 @@ object PredTrans {
 
     // Find the weakest precondition when executing the loop body once
     val newGraph = GraphUtil.cloneGraph(loopBody)
-    val exitBlk = new SpecialBlockImpl(SpecialBlockType.EXIT)
+    val exitBlk = GraphUtil.newSpecialBlock(SpecialBlockType.EXIT)
     newGraph.addVertex(exitBlk)
     // Break the loop by replacing all edges ending up at loop head with ending up at an empty exit block
     val backEdges = newGraph.incomingEdgesOf(headAsCond).asScala.toList
@@ -443,13 +444,7 @@ object PredTrans {
       if (assignedVars.nonEmpty) {
         val varsToSubstitute = assignedVars.foldLeft((List[Expr](), List[Expr]()))({
           case (acc, (name: String, typ: TypeMirror)) =>
-            val freshName = {
-              var r = Utils.genRandStr()
-              while (z3Solver.vars.contains(r)) {
-                r = Utils.genRandStr()
-              }
-              r
-            }
+            val freshName = z3Solver.mkFreshName()
             if (typ.getKind == TypeKind.INT) {
               (z3Solver.mkIntVar(name) :: acc._1, z3Solver.mkIntVar(freshName) :: acc._2)
             }
@@ -461,10 +456,11 @@ object PredTrans {
               acc
             }
         })
-        z3Solver.mkForall(
-          varsToSubstitute._2.toArray,
-          body.substitute(varsToSubstitute._1.toArray, varsToSubstitute._2.toArray)
-        )
+        val havoc = body.substitute(varsToSubstitute._1.toArray, varsToSubstitute._2.toArray)
+        // Weakest preconditions only occur at positive positions of validity checks, where the universal quantifier
+        // can be pulled out to the outermost level and hence be Skolemized into the fresh constants
+        if (Invariant.QUANTIFIER_FREE_VC) havoc
+        else z3Solver.mkForall(varsToSubstitute._2.toArray, havoc)
       }
       else {
         body
@@ -490,6 +486,29 @@ object PredTrans {
     })
   }
 
+  // The tree of the branching condition of a conditional block, which is the last tree of its only predecessor (see
+  // getCond). It is None if the block does not have exactly one predecessor, or if the predecessor is not regular
+  def branchTree(block: ConditionalBlock, graph: Graph[Block, DefaultEdge]): Option[Tree] = {
+    val inEdges = graph.incomingEdgesOf(block).asScala
+    if (inEdges.size != 1) None
+    else {
+      graph.getEdgeSource(inEdges.head) match {
+        case reg: RegularBlock => Option(reg.getContents.asScala.last.getTree)
+        case _ => None
+      }
+    }
+  }
+
+  // The branching condition of an assert statement, which is taken to be true
+  def isAssertionsEnabled(tree: Tree): Boolean = tree.toString.contains("assertionsEnabled")
+
+  def isResourceUpdate(tree: Tree): Boolean = {
+    tree match {
+      case assignmentTree: AssignmentTree => Utils.getResVarName(assignmentTree.getVariable.toString).isDefined
+      case _ => false
+    }
+  }
+
   def getTopLevelStmts(block: Block): List[Node] = {
     block match {
       case reg: RegularBlock => reg.getContents.asScala.filter({
@@ -500,7 +519,31 @@ object PredTrans {
   }
 
   // Transform an expression tree into a Z3 expression
+  // Translations are memoized per solver, except for trees that contain method invocations, because each invocation is
+  // translated into a fresh variable
   def transExpr(expressionTree: ExpressionTree, z3Solver: Z3Solver): Expr = {
+    z3Solver.trees.get(expressionTree) match {
+      case Some(expr) => expr
+      case None =>
+        val expr = transExprUncached(expressionTree, z3Solver)
+        if (!hasInvocation(expressionTree)) {
+          if (z3Solver.trees.size >= Z3Solver.MAX_NUM_OF_TERMS) z3Solver.trees.clear()
+          z3Solver.trees.put(expressionTree, expr)
+        }
+        expr
+    }
+  }
+
+  private def hasInvocation(tree: Tree): Boolean = {
+    val scanner = new TreeScanner[java.lang.Boolean, Void] {
+      override def visitMethodInvocation(node: MethodInvocationTree, p: Void): java.lang.Boolean = true
+
+      override def reduce(r1: java.lang.Boolean, r2: java.lang.Boolean): java.lang.Boolean = r1 == true || r2 == true
+    }
+    scanner.scan(tree, null) == true
+  }
+
+  private def transExprUncached(expressionTree: ExpressionTree, z3Solver: Z3Solver): Expr = {
     val typ = TreeUtils.typeOf(expressionTree)
     val isInt = typ.getKind == TypeKind.INT
     val isBool = typ.getKind == TypeKind.BOOLEAN
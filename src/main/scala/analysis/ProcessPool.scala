@@ -0,0 +1,155 @@
+package analysis
+
+import java.io._
+import java.util.concurrent._
+
+import com.microsoft.z3.Status
+import utils.Utils
+
+import scala.collection.JavaConverters._
+
+/**
+  * @author Tianhan Lu
+  */
+case class PoolResult(status: Status, reasonUnknown: String, time: Double)
+
+// A pool of solver processes, which check self-contained SMT-LIB2 scripts (see SmtLib.script) concurrently. A process
+// that exceeds its time limit (or crashes, or reports an error) is killed and restarted, and its query is reported as unknown, such that a
+// bad query never takes down the analyzer
+object ProcessPool {
+  val DEBUG = false
+  val NUM_OF_WORKERS: Int = SolverPool.NUM_OF_THREADS
+  // The time (in milliseconds) that a process is given on top of the timeout of a query before it is killed
+  val GRACE_PERIOD = 2000
+
+  var TOTAL_RESTARTS: Int = 0
+
+  private class Worker {
+    private var process: Process = _
+    private var toSolver: BufferedWriter = _
+    private var fromSolver: BufferedReader = _
+
+    start()
+
+    private def start(): Unit = {
+      process = new ProcessBuilder(SolverBackend.PROCESS_COMMAND.asJava).redirectErrorStream(true).start()
+      toSolver = new BufferedWriter(new OutputStreamWriter(process.getOutputStream))
+      fromSolver = new BufferedReader(new InputStreamReader(process.getInputStream))
+    }
+
+    def restart(): Unit = {
+      process.destroyForcibly()
+      ProcessPool.synchronized(TOTAL_RESTARTS += 1)
+      if (DEBUG) Utils.printRedString("[ProcessPool] Restarted a solver process")
+      start()
+    }
+
+    def kill(): Unit = process.destroyForcibly()
+
+    private def receive(deadline: Long, isAnswer: String => Boolean): Either[String, String] = ProcessPool.receive(fromSolver, deadline, isAnswer)
+
+    def run(script: String, timeout: Int): PoolResult = {
+      val start = System.nanoTime()
+      val deadline = System.currentTimeMillis() + timeout + GRACE_PERIOD
+
+      def time: Double = (System.nanoTime() - start).toDouble / Utils.NANO
+
+      try {
+        toSolver.write(script)
+        toSolver.flush()
+      } catch {
+        case e: IOException =>
+          restart()
+          return PoolResult(Status.UNKNOWN, e.toString, time)
+      }
+      receive(deadline, isCheckAnswer) match {
+        case Right("sat") => PoolResult(Status.SATISFIABLE, "", time)
+        case Right("unsat") => PoolResult(Status.UNSATISFIABLE, "", time)
+        case Right(_) =>
+          val t = time
+          toSolver.write("(get-info :reason-unknown)\n")
+          toSolver.flush()
+          receive(System.currentTimeMillis() + GRACE_PERIOD, isReasonUnknown) match {
+            case Right(reason) => PoolResult(Status.UNKNOWN, reason, t)
+            case Left(reason) =>
+              restart()
+              PoolResult(Status.UNKNOWN, reason, t)
+          }
+        case Left(reason) =>
+          // The process may be in any state, so that it can not serve other queries
+          restart()
+          PoolResult(Status.UNKNOWN, reason, time)
+      }
+    }
+  }
+
+  private def daemonFactory: ThreadFactory = new ThreadFactory {
+    override def newThread(runnable: Runnable): Thread = {
+      val thread = new Thread(runnable)
+      thread.setDaemon(true)
+      thread
+    }
+  }
+
+  // Blocking reads from the processes, which are abandoned when they time out
+  private lazy val readers = Executors.newCachedThreadPool(daemonFactory)
+
+  val isCheckAnswer: String => Boolean = line => line == "sat" || line == "unsat" || line == "unknown"
+
+  val isReasonUnknown: String => Boolean = line => line.startsWith("(:reason-unknown")
+
+  // Read the output of a solver process until a line is an answer, skipping other lines (e.g. warnings). An error, an
+  // exit, or no answer before the deadline is a failure (with its reason), after which the process is out of sync
+  private[analysis] def receive(reader: BufferedReader, deadline: Long, isAnswer: String => Boolean): Either[String, String] = {
+    val future = readers.submit(new Callable[Either[String, String]] {
+      override def call(): Either[String, String] = {
+        var res: Option[Either[String, String]] = None
+        while (res.isEmpty) {
+          val line = reader.readLine()
+          if (line == null) res = Some(Left("crashed"))
+          else if (line.startsWith("(error")) res = Some(Left(line.trim))
+          else if (isAnswer(line.trim)) res = Some(Right(line.trim))
+          else if (DEBUG) Utils.printRedString("[ProcessPool] Skipped " + line)
+        }
+        if (DEBUG) res.get.left.foreach(reason => Utils.printRedString("[ProcessPool] " + reason))
+        res.get
+      }
+    })
+    try {
+      future.get(Math.max(deadline - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS)
+    } catch {
+      case _: TimeoutException =>
+        future.cancel(true)
+        Left("timeout")
+      case e: ExecutionException => Left(e.getCause.toString)
+    }
+  }
+
+  private lazy val dispatcher = Executors.newFixedThreadPool(NUM_OF_WORKERS, daemonFactory)
+
+  private lazy val idle: BlockingQueue[Worker] = {
+    val queue = new LinkedBlockingQueue[Worker]
+    (0 until NUM_OF_WORKERS).foreach(_ => queue.put(new Worker))
+    sys.addShutdownHook(queue.asScala.foreach(worker => worker.kill()))
+    queue
+  }
+
+  def check(script: String, timeout: Int): PoolResult = {
+    val worker = idle.take()
+    try worker.run(script, timeout) finally idle.put(worker)
+  }
+
+  // Check scripts concurrently on all processes. Results are in the same order as scripts
+  def checkAll(scripts: Seq[String], timeout: Int): Seq[PoolResult] = {
+    if (scripts.size <= 1) scripts.map(script => check(script, timeout))
+    else {
+      val tasks = scripts.map({
+        script =>
+          new Callable[PoolResult] {
+            override def call(): PoolResult = check(script, timeout)
+          }
+      })
+      dispatcher.invokeAll(tasks.asJava).asScala.map(future => future.get()).toList
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package analysis
+
+import java.util
+
+import com.microsoft.z3.{Expr, Quantifier}
+
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+// A LRU cache of SAT results. Queries are keyed on their structure (instead of their string representations),
+// such that queries that are the same up to renaming of bound variables and fresh variables share a key
+class QueryCache(capacity: Int) {
+  var hits: Int = 0
+  var misses: Int = 0
+
+  // Each entry keeps a reference to its query, so that Z3 will not recycle the AST ids that the key is built from
+  private val entries = new util.LinkedHashMap[QueryKey, (Boolean, Expr)](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: util.Map.Entry[QueryKey, (Boolean, Expr)]): Boolean = size() > capacity
+  }
+
+  def get(key: QueryKey): Option[Boolean] = {
+    val entry = entries.get(key)
+    if (entry == null) {
+      misses += 1
+      QueryCache.synchronized(QueryCache.TOTAL_MISSES += 1)
+      None
+    }
+    else {
+      hits += 1
+      QueryCache.synchronized(QueryCache.TOTAL_HITS += 1)
+      Some(entry._1)
+    }
+  }
+
+  def put(key: QueryKey, query: Expr, res: Boolean): Unit = entries.put(key, (res, query))
+
+  def size: Int = entries.size()
+
+  def clear(): Unit = entries.clear()
+}
+
+object QueryCache {
+  var TOTAL_HITS: Int = 0
+  var TOTAL_MISSES: Int = 0
+
+  private val CLOSED_TAG = 0
+  private val FRESH_TAG = 1
+  private val APP_TAG = 2
+  private val QUANTIFIER_TAG = 3
+  private val REF_TAG = 4
+
+  /**
+    *
+    * @param expr      the query
+    * @param isFresh   whether a constant (identified by its name) is a fresh variable
+    * @return a key that only depends on the structure of expr, where fresh variables are numbered in the order of
+    *         their first occurrences and names of bound variables are ignored (Z3 represents them as de Bruijn indices)
+    */
+  def keyOf(expr: Expr, isFresh: String => Boolean): QueryKey = {
+    val codes = new mutable.ArrayBuffer[Int]
+    // AST id -> whether the AST contains neither quantifiers nor fresh variables
+    val closed = new mutable.HashMap[Int, Boolean]
+    // AST id -> the position where its encoding starts
+    val visited = new mutable.HashMap[Int, Int]
+    // Declaration id of a fresh variable -> the order of its first occurrence
+    val freshVars = new mutable.HashMap[Int, Int]
+
+    def isFreshVar(e: Expr): Boolean = e.isConst && isFresh(e.getFuncDecl.getName.toString)
+
+    def isClosed(e: Expr): Boolean = {
+      val id = e.getId
+      closed.get(id) match {
+        case Some(b) => b
+        case None =>
+          val b = {
+            // Bound variables (i.e. de Bruijn indices) are closed
+            if (e.isVar) true
+            else if (!e.isApp) false
+            else if (isFreshVar(e)) false
+            else e.getArgs.forall(arg => isClosed(arg))
+          }
+          closed.put(id, b)
+          b
+      }
+    }
+
+    def encode(e: Expr): Unit = {
+      if (isClosed(e)) {
+        // Z3 hash-conses its ASTs, so structurally equal closed ASTs have the same id
+        codes += CLOSED_TAG
+        codes += e.getId
+        return
+      }
+      val id = e.getId
+      visited.get(id) match {
+        case Some(pos) =>
+          codes += REF_TAG
+          codes += pos
+        case None =>
+          visited.put(id, codes.size)
+          if (e.isQuantifier) {
+            val q = e.asInstanceOf[Quantifier]
+            codes += QUANTIFIER_TAG
+            codes += (if (q.isUniversal) 1 else 0)
+            codes += q.getNumBound
+            q.getBoundVariableSorts.foreach(sort => codes += sort.getId)
+            encode(q.getBody)
+          }
+          else if (isFreshVar(e)) {
+            val decl = e.getFuncDecl
+            val idx = freshVars.getOrElseUpdate(decl.getId, freshVars.size)
+            codes += FRESH_TAG
+            codes += idx
+            codes += e.getSort.getId
+          }
+          else {
+            val args = e.getArgs
+            codes += APP_TAG
+            codes += e.getFuncDecl.getId
+            codes += args.length
+            args.foreach(arg => encode(arg))
+          }
+      }
+    }
+
+    encode(expr)
+    QueryKey(codes.toArray)
+  }
+
+  def getHitRate: Double = {
+    val total = TOTAL_HITS + TOTAL_MISSES
+    if (total == 0) 0 else TOTAL_HITS.toDouble / total
+  }
+}
+
+case class QueryKey(codes: Array[Int]) {
+  private val hash = util.Arrays.hashCode(codes)
+
+  override def hashCode(): Int = hash
+
+  override def equals(obj: Any): Boolean = {
+    obj match {
+      case key: QueryKey => hash == key.hashCode() && util.Arrays.equals(codes, key.codes)
+      case _ => false
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package analysis
+
+import com.microsoft.z3.enumerations.Z3_decl_kind
+import com.microsoft.z3.{BoolExpr, Expr, Quantifier}
+
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+// Serialization of queries into SMT-LIB2 scripts, which are checked by solver processes
+object SmtLib {
+  // The declarations of the uninterpreted constants and functions in expr that are not declared yet
+  def declarations(expr: Expr, isDeclared: String => Boolean): List[String] = {
+    val visited = new mutable.HashSet[Int]
+    val found = new mutable.LinkedHashSet[String]
+    var stack: List[Expr] = List(expr)
+    while (stack.nonEmpty) {
+      val e = stack.head
+      stack = stack.tail
+      if (visited.add(e.getId)) {
+        if (e.isQuantifier) stack = e.asInstanceOf[Quantifier].getBody :: stack
+        else if (e.isApp) {
+          val decl = e.getFuncDecl
+          if (decl.getDeclKind == Z3_decl_kind.Z3_OP_UNINTERPRETED) {
+            val declaration = decl.toString
+            if (!isDeclared(declaration)) found += declaration
+          }
+          stack = e.getArgs.toList ++ stack
+        }
+      }
+    }
+    found.toList
+  }
+
+  def options(profile: SolverProfile): List[String] = {
+    List("(set-option :global-declarations true)", "(set-option :timeout " + profile.timeout + ")") ++
+      profile.logic.map(logic => "(set-logic " + logic + ")")
+  }
+
+  def checkCommand(profile: SolverProfile, assumptions: Seq[BoolExpr]): String = {
+    // Tactics cannot be combined with assumptions, in which case the solver's default strategy is used
+    if (assumptions.nonEmpty) "(check-sat-assuming (" + assumptions.mkString(" ") + "))"
+    else {
+      profile.tactics match {
+        case Nil => "(check-sat)"
+        case t :: Nil => "(check-sat-using " + t + ")"
+        case ts => "(check-sat-using " + ts.mkString("(then ", " ", ")") + ")"
+      }
+    }
+  }
+
+  // A script that checks formula from scratch
+  def script(profile: SolverProfile, formula: BoolExpr): String = {
+    val lines = List("(reset)") ++ options(profile) ++ declarations(formula, _ => false) ++
+      List("(assert " + formula.toString + ")", checkCommand(profile, Nil))
+    lines.mkString("", "\n", "\n")
+  }
+}
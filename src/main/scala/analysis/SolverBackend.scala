@@ -0,0 +1,214 @@
+package analysis
+
+import java.io._
+
+import com.microsoft.z3._
+import utils.Utils
+
+import scala.collection.JavaConverters._
+import scala.collection.immutable.HashSet
+
+/**
+  * @author Tianhan Lu
+  */
+// What Z3Solver needs from a solver to check its queries. Expressions are always built with the Java bindings (in
+// Z3Solver's context), but may be checked by a different solver
+trait SolverBackend {
+  def push(): Unit
+
+  def pop(): Unit
+
+  def add(assertions: BoolExpr*): Unit
+
+  def check(assumptions: BoolExpr*): Status
+
+  // Why the last check returned Status.UNKNOWN
+  def reasonUnknown: String
+
+  // The statistics of the checks since they are last read (usually the last check), if the backend reports them
+  def statistics: Option[Map[String, Double]]
+
+  // Remove all assertions and scopes
+  def reset(): Unit
+
+  def close(): Unit
+}
+
+object SolverBackend {
+  val NATIVE = "native"
+  val PROCESS = "process"
+  // Queries are checked from scratch by a pool of solver processes (see ProcessPool). Queries that depend on the
+  // state of a solver (e.g. assertions that are added via mkAssert) are still checked natively
+  val POOL = "pool"
+
+  // E.g. -Dboundchecker.backend=process -Dboundchecker.solver="/usr/local/bin/z3 -in"
+  val BACKEND: String = sys.props.getOrElse("boundchecker.backend", NATIVE)
+  val PROCESS_COMMAND: List[String] = sys.props.getOrElse("boundchecker.solver", "z3 -in").split(" ").filter(s => s.nonEmpty).toList
+
+  def apply(ctx: Context, profile: SolverProfile): SolverBackend = {
+    BACKEND match {
+      case NATIVE | POOL => new NativeBackend(profile.mkSolver(ctx))
+      case PROCESS => new ProcessBackend(profile, PROCESS_COMMAND)
+      case _ => assert(false, "Unknown solver backend: " + BACKEND); null
+    }
+  }
+}
+
+// The solver of the Java bindings
+class NativeBackend(val solver: Solver) extends SolverBackend {
+  override def push(): Unit = solver.push()
+
+  override def pop(): Unit = solver.pop()
+
+  override def add(assertions: BoolExpr*): Unit = solver.add(assertions: _*)
+
+  override def check(assumptions: BoolExpr*): Status = solver.check(assumptions: _*)
+
+  override def reasonUnknown: String = solver.getReasonUnknown
+
+  private val tracker = new StatisticsTracker
+
+  override def statistics: Option[Map[String, Double]] = Some(tracker.delta(solver.getStatistics))
+
+  override def reset(): Unit = {
+    solver.reset()
+    tracker.reset()
+  }
+
+  override def close(): Unit = {}
+}
+
+/**
+  *
+  * @param profile the timeout, logic and tactics of the solver
+  * @param command the command that starts a solver, which reads SMT-LIB2 commands from its standard input
+  */
+// A long-lived solver process, to which assertions are streamed in SMT-LIB2. A crash of the process does not take
+// down javac, and the solver can be upgraded without rebuilding the Java bindings. If the process reports an error,
+// exits or does not answer in time, then it is restarted, and its assertions are lost. Checks are then unknown (and
+// other commands are not sent) until the backend is reset
+class ProcessBackend(profile: SolverProfile, command: List[String]) extends SolverBackend {
+  private var process: Process = _
+  private var toSolver: BufferedWriter = _
+  private var fromSolver: BufferedReader = _
+
+  // Declarations of the uninterpreted constants and functions that are sent to the solver. Declarations are global
+  // (i.e. they are not removed by pop), such that they are only sent once
+  private var declared = new HashSet[String]
+  private var lastReasonUnknown = ""
+  // Whether the process is restarted since the last reset
+  private var isLost = false
+
+  start()
+
+  private def start(): Unit = {
+    process = new ProcessBuilder(command.asJava).redirectErrorStream(true).start()
+    toSolver = new BufferedWriter(new OutputStreamWriter(process.getOutputStream))
+    fromSolver = new BufferedReader(new InputStreamReader(process.getInputStream))
+    declared = new HashSet[String]
+    init()
+  }
+
+  private def restart(reason: String): Unit = {
+    process.destroyForcibly()
+    ProcessPool.synchronized(ProcessPool.TOTAL_RESTARTS += 1)
+    if (ProcessPool.DEBUG) Utils.printRedString("[ProcessBackend] Restarted a solver process: " + reason)
+    start()
+    isLost = true
+  }
+
+  private def init(): Unit = SmtLib.options(profile).foreach(option => send(option))
+
+  private def send(cmd: String): Unit = {
+    if (!isLost) {
+      toSolver.write(cmd)
+      toSolver.newLine()
+    }
+  }
+
+  private def receive(deadline: Long, isAnswer: String => Boolean): Either[String, String] = {
+    try {
+      toSolver.flush()
+      ProcessPool.receive(fromSolver, deadline, isAnswer)
+    } catch {
+      case e: IOException => Left(e.toString)
+    }
+  }
+
+  private def declare(expr: Expr): Unit = {
+    SmtLib.declarations(expr, declaration => declared.contains(declaration)).foreach({
+      declaration =>
+        declared += declaration
+        send(declaration)
+    })
+  }
+
+  override def push(): Unit = send("(push 1)")
+
+  override def pop(): Unit = send("(pop 1)")
+
+  override def add(assertions: BoolExpr*): Unit = {
+    assertions.foreach({
+      assertion =>
+        declare(assertion)
+        send("(assert " + assertion.toString + ")")
+    })
+  }
+
+  override def check(assumptions: BoolExpr*): Status = {
+    if (isLost) {
+      lastReasonUnknown = "the solver process is restarted"
+      return Status.UNKNOWN
+    }
+    assumptions.foreach(assumption => declare(assumption))
+    send(SmtLib.checkCommand(profile, assumptions))
+    val res = receive(System.currentTimeMillis() + profile.timeout + ProcessPool.GRACE_PERIOD, ProcessPool.isCheckAnswer) match {
+      case Right("sat") => Right(Status.SATISFIABLE)
+      case Right("unsat") => Right(Status.UNSATISFIABLE)
+      case Right(_) =>
+        send("(get-info :reason-unknown)")
+        receive(System.currentTimeMillis() + ProcessPool.GRACE_PERIOD, ProcessPool.isReasonUnknown).right.map({
+          reason =>
+            lastReasonUnknown = reason
+            Status.UNKNOWN
+        })
+      case Left(reason) => Left(reason)
+    }
+    res match {
+      case Right(status) => status
+      case Left(reason) =>
+        // The process may be in any state (e.g. an assertion is dropped), so that its answers can not be trusted
+        lastReasonUnknown = reason
+        restart(reason)
+        Status.UNKNOWN
+    }
+  }
+
+  override def reasonUnknown: String = lastReasonUnknown
+
+  override def statistics: Option[Map[String, Double]] = None
+
+  override def reset(): Unit = {
+    if (isLost) {
+      // The restarted process has no assertions, but declarations that are made since are not sent
+      isLost = false
+      declared = new HashSet[String]
+    }
+    else {
+      send("(reset)")
+      declared = new HashSet[String]
+      init()
+    }
+  }
+
+  override def close(): Unit = {
+    try {
+      toSolver.write("(exit)")
+      toSolver.newLine()
+      toSolver.flush()
+    } catch {
+      case _: IOException => // The process is already dead
+    }
+    process.destroy()
+  }
+}
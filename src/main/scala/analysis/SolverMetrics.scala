@@ -0,0 +1,258 @@
+package analysis
+
+import java.io.{File, IOException, PrintWriter}
+import java.text.SimpleDateFormat
+import java.util.Date
+
+import com.microsoft.z3.{AST, Expr, Quantifier, Statistics, Status}
+import utils.Utils
+
+import scala.collection.immutable.HashMap
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+// Metrics of a kind of queries
+class KindMetrics {
+  var queries: Int = 0
+  var sat: Int = 0
+  var unsat: Int = 0
+  var unknown: Int = 0
+  var timeouts: Int = 0 // A subset of unknown
+  var cacheHits: Int = 0
+  var cacheMisses: Int = 0
+  var totalTime: Double = 0 // In seconds
+  var maxTime: Double = 0
+  var totalFormulaSize: Long = 0
+  var maxFormulaSize: Int = 0
+  // The number of queries whose latency falls into each bucket of SolverMetrics.BUCKETS (the last one is unbounded)
+  val histogram: Array[Int] = new Array[Int](SolverMetrics.BUCKETS.length + 1)
+
+  def avgTime: Double = if (queries == 0) 0 else totalTime / queries
+
+  def avgFormulaSize: Double = if (queries == 0) 0 else totalFormulaSize.toDouble / queries
+}
+
+// A registry of the metrics of all queries that are sent to Z3 (in all threads) during a run
+object SolverMetrics {
+  val EXPORT = true
+  // Collecting Z3's statistics after every query is not free, hence it is off unless e.g. -Dboundchecker.statistics=true
+  val Z3_STATISTICS: Boolean = sys.props.get("boundchecker.statistics").exists(s => s.toBoolean)
+
+  // Upper bounds (in milliseconds) of the buckets of latency histograms
+  val BUCKETS: Array[Int] = Array(1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000)
+
+  val RUN_ID: String = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date())
+
+  private var kinds = new HashMap[QueryKind.Value, KindMetrics]
+  // Z3's statistics, summed over all queries (except for memory usages, for which we keep the maximum)
+  private var z3Statistics = new HashMap[String, Double]
+
+  private def metricsOf(kind: QueryKind.Value): KindMetrics = {
+    kinds.get(kind) match {
+      case Some(m) => m
+      case None =>
+        val m = new KindMetrics
+        kinds += (kind -> m)
+        m
+    }
+  }
+
+  def bucketOf(millis: Double): Int = {
+    val idx = BUCKETS.indexWhere(bound => millis <= bound)
+    if (idx < 0) BUCKETS.length else idx
+  }
+
+  /**
+    *
+    * @param kind          the kind of the query
+    * @param time          in seconds
+    * @param status        the output of Z3
+    * @param reasonUnknown Z3's explanation of why status is UNKNOWN
+    * @param formulaSize   the number of distinct nodes of the query
+    * @param statistics    Z3's statistics of the query (see StatisticsTracker), rather than of the solver so far
+    */
+  def recordQuery(kind: QueryKind.Value,
+                  time: Double,
+                  status: Status,
+                  reasonUnknown: String,
+                  formulaSize: Int,
+                  statistics: Option[Map[String, Double]]): Unit = {
+    val entries = statistics.getOrElse(Map[String, Double]())
+    SolverMetrics.synchronized {
+      val m = metricsOf(kind)
+      m.queries += 1
+      status match {
+        case Status.SATISFIABLE => m.sat += 1
+        case Status.UNSATISFIABLE => m.unsat += 1
+        case Status.UNKNOWN =>
+          m.unknown += 1
+          if (reasonUnknown.contains("timeout") || reasonUnknown.contains("canceled")) m.timeouts += 1
+      }
+      m.totalTime += time
+      m.maxTime = Math.max(m.maxTime, time)
+      m.totalFormulaSize += formulaSize
+      m.maxFormulaSize = Math.max(m.maxFormulaSize, formulaSize)
+      m.histogram(bucketOf(time * 1000)) += 1
+      entries.foreach({
+        case (key, value) =>
+          val old = z3Statistics.getOrElse(key, 0.0)
+          val newValue = if (key.contains("memory")) Math.max(old, value) else old + value
+          z3Statistics += (key -> newValue)
+      })
+    }
+  }
+
+  def entriesOf(statistics: Statistics): Map[String, Double] = {
+    statistics.getEntries.toList.map({
+      entry =>
+        val value = if (entry.isUInt) entry.getUIntValue.toDouble else entry.getDoubleValue
+        entry.Key -> value
+    }).toMap
+  }
+
+  // Statistics of a solver are cumulative, hence what a query adds is the difference to the statistics before it.
+  // Memory usages are kept as they are, and a counter that decreases is taken to have restarted (e.g. after a reset)
+  def deltaOf(previous: Map[String, Double], current: Map[String, Double]): Map[String, Double] = {
+    current.map({
+      case (key, value) =>
+        val old = previous.getOrElse(key, 0.0)
+        key -> (if (key.contains("memory") || value < old) value else value - old)
+    })
+  }
+
+  def recordCacheLookup(kind: QueryKind.Value, hit: Boolean): Unit = {
+    SolverMetrics.synchronized {
+      val m = metricsOf(kind)
+      if (hit) m.cacheHits += 1
+      else m.cacheMisses += 1
+    }
+  }
+
+  // The number of distinct nodes in the DAG of expr
+  def sizeOf(expr: Expr): Int = {
+    val visited = new mutable.HashSet[Int]
+    var stack: List[Expr] = List(expr)
+    while (stack.nonEmpty) {
+      val e = stack.head
+      stack = stack.tail
+      if (visited.add(e.getId)) {
+        if (e.isQuantifier) stack = e.asInstanceOf[Quantifier].getBody :: stack
+        else if (e.isApp) stack = e.getArgs.toList ++ stack
+      }
+    }
+    visited.size
+  }
+
+  def sizeOf(ast: AST): Int = sizeOf(ast.asInstanceOf[Expr])
+
+  def reset(): Unit = {
+    SolverMetrics.synchronized {
+      kinds = new HashMap[QueryKind.Value, KindMetrics]
+      z3Statistics = new HashMap[String, Double]
+    }
+  }
+
+  def bucketNames: List[String] = BUCKETS.toList.map(b => "le_" + b + "ms") :+ ("gt_" + BUCKETS.last + "ms")
+
+  private def sortedKinds: List[(QueryKind.Value, KindMetrics)] = kinds.toList.sortBy({ case (kind, _) => kind.id })
+
+  def toCsv: String = {
+    SolverMetrics.synchronized {
+      val header = List("kind", "queries", "sat", "unsat", "unknown", "timeouts", "cache_hits", "cache_misses",
+        "total_time", "avg_time", "max_time", "avg_formula_size", "max_formula_size") ++ bucketNames
+      val rows = sortedKinds.map({
+        case (kind, m) =>
+          List(kind.toString, m.queries, m.sat, m.unsat, m.unknown, m.timeouts, m.cacheHits, m.cacheMisses,
+            "%.6f" format m.totalTime, "%.6f" format m.avgTime, "%.6f" format m.maxTime,
+            "%.3f" format m.avgFormulaSize, m.maxFormulaSize) ++ m.histogram.toList
+      })
+      (header :: rows).map(row => row.mkString(",")).mkString("", "\n", "\n")
+    }
+  }
+
+  def z3StatisticsToCsv: String = {
+    SolverMetrics.synchronized {
+      val rows = z3Statistics.toList.sortBy(_._1).map({ case (key, value) => "\"" + key + "\"," + value })
+      ("key,value" :: rows).mkString("", "\n", "\n")
+    }
+  }
+
+  def toJson: String = {
+    def str(s: String): String = "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+
+    SolverMetrics.synchronized {
+      val kindsJson = sortedKinds.map({
+        case (kind, m) =>
+          val histogram = bucketNames.zip(m.histogram).map({ case (name, n) => str(name) + ": " + n }).mkString("{", ", ", "}")
+          val fields = List(
+            "queries" -> m.queries.toString,
+            "sat" -> m.sat.toString,
+            "unsat" -> m.unsat.toString,
+            "unknown" -> m.unknown.toString,
+            "timeouts" -> m.timeouts.toString,
+            "cache_hits" -> m.cacheHits.toString,
+            "cache_misses" -> m.cacheMisses.toString,
+            "total_time" -> ("%.6f" format m.totalTime),
+            "avg_time" -> ("%.6f" format m.avgTime),
+            "max_time" -> ("%.6f" format m.maxTime),
+            "avg_formula_size" -> ("%.3f" format m.avgFormulaSize),
+            "max_formula_size" -> m.maxFormulaSize.toString,
+            "latency_histogram" -> histogram
+          )
+          "    " + str(kind.toString) + ": " + fields.map({ case (k, v) => str(k) + ": " + v }).mkString("{", ", ", "}")
+      })
+      val statsJson = z3Statistics.toList.sortBy(_._1).map({ case (key, value) => "    " + str(key) + ": " + value })
+      "{\n" +
+        "  \"run\": " + str(RUN_ID) + ",\n" +
+        "  \"kinds\": {\n" + kindsJson.mkString(",\n") + "\n  },\n" +
+        "  \"z3_statistics\": {\n" + statsJson.mkString(",\n") + "\n  }\n" +
+        "}\n"
+    }
+  }
+
+  // Write the metrics of the current run into outputDir. Files of a run are overwritten by later exports of the same run
+  def export(outputDir: String): Unit = {
+    val prefix = outputDir + Utils.SEPARATOR + "solver_metrics_" + RUN_ID
+    try {
+      new File(outputDir).mkdirs()
+      List(
+        (prefix + ".json", toJson),
+        (prefix + ".csv", toCsv),
+        (prefix + "_z3.csv", z3StatisticsToCsv)
+      ).foreach({
+        case (fileName, content) =>
+          val writer = new PrintWriter(new File(fileName))
+          try writer.write(content) finally writer.close()
+      })
+    } catch {
+      case e: IOException => e.printStackTrace()
+    }
+  }
+
+  def printMetrics(): Unit = {
+    SolverMetrics.synchronized {
+      sortedKinds.foreach({
+        case (kind, m) =>
+          Utils.printRedString("  " + kind + ": " + m.queries + " queries (" + m.unknown + " unknown, " + m.timeouts +
+            " timeouts) in " + ("%.3f" format m.totalTime) + "s; cache hit " + m.cacheHits + "/" + (m.cacheHits + m.cacheMisses) +
+            "; avg formula size " + ("%.1f" format m.avgFormulaSize))
+      })
+    }
+  }
+}
+
+// The statistics of a Z3 solver (or optimizer) since they are last read, which are what the queries in between add
+class StatisticsTracker {
+  private var last: Map[String, Double] = new HashMap[String, Double]
+
+  def delta(statistics: Statistics): Map[String, Double] = {
+    val current = SolverMetrics.entriesOf(statistics)
+    val res = SolverMetrics.deltaOf(last, current)
+    last = current
+    res
+  }
+
+  def reset(): Unit = last = new HashMap[String, Double]
+}
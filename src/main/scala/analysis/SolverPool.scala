@@ -0,0 +1,153 @@
+package analysis
+
+import java.util.concurrent.{Callable, CyclicBarrier, ExecutionException, Executors, ThreadFactory}
+
+import scala.collection.JavaConverters._
+
+/**
+  * @author Tianhan Lu
+  */
+// A pool of worker threads, each of which owns a Z3Solver (and hence a Z3 context that is only used by that thread).
+// Expressions are moved into a worker's context via Z3Solver.translate (or translateVar), which is the only way that
+// a worker may touch an expression of the calling thread: the caller waits for its tasks, but workers translating from
+// the caller's context at the same time are serialized by a lock
+object SolverPool {
+  val NUM_OF_THREADS: Int = Runtime.getRuntime.availableProcessors()
+  val PARALLEL: Boolean = NUM_OF_THREADS > 1
+  // The number of elements that each thread checks before find decides whether to stop searching
+  val CHUNK_SIZE = 4
+
+  private class Worker(runnable: Runnable) extends Thread(runnable) {
+    setDaemon(true)
+    // Created when the worker runs its first task, and again after it is closed (see closeWorkers)
+    private var solver: Option[Z3Solver] = None
+
+    def z3Solver: Z3Solver = {
+      solver match {
+        case Some(s) => s
+        case None =>
+          val s = new Z3Solver
+          solver = Some(s)
+          s
+      }
+    }
+
+    def closeSolver(): Unit = {
+      solver.foreach(s => s.close())
+      solver = None
+    }
+  }
+
+  private lazy val executor = Executors.newFixedThreadPool(NUM_OF_THREADS, new ThreadFactory {
+    override def newThread(runnable: Runnable): Thread = new Worker(runnable)
+  })
+  // Whether any task has been submitted (and hence workers may hold state of a method)
+  @volatile private var started = false
+
+  private def currentWorker: Option[Worker] = {
+    Thread.currentThread() match {
+      case worker: Worker => Some(worker)
+      case _ => None
+    }
+  }
+
+  /**
+    *
+    * @param elems    the elements to check
+    * @param z3Solver the solver of the calling thread
+    * @param check    a check that only uses the given solver. It must translate the expressions it uses into the
+    *                 given solver's context, and not call any other method (e.g. toString) on them
+    * @return the results of check, in the same order as elems
+    */
+  def map[T](elems: Seq[T], z3Solver: Z3Solver)(check: (T, Z3Solver) => Boolean): Seq[Boolean] = {
+    // Workers do not submit tasks to the pool, which would otherwise wait for themselves
+    if (!PARALLEL || elems.size <= 1 || currentWorker.isDefined) elems.map(elem => check(elem, z3Solver))
+    else invokeAll(elems.map(elem => (solver: Z3Solver) => check(elem, solver)))
+  }
+
+  // Split elems into one chunk per thread, such that each chunk is checked as a whole (e.g. in one solver session)
+  def mapChunks[T, R](elems: Seq[T], z3Solver: Z3Solver)(check: (Seq[T], Z3Solver) => Seq[R]): Seq[R] = {
+    if (!PARALLEL || elems.size <= 1 || currentWorker.isDefined) check(elems, z3Solver)
+    else {
+      val chunkSize = (elems.size + NUM_OF_THREADS - 1) / NUM_OF_THREADS
+      invokeAll(elems.grouped(chunkSize).toList.map(chunk => (solver: Z3Solver) => check(chunk, solver))).flatten
+    }
+  }
+
+  private def invokeAll[R](tasks: Seq[Z3Solver => R]): Seq[R] = {
+    started = true
+    val callables = tasks.map({
+      task =>
+        new Callable[R] {
+          override def call(): R = task(currentWorker.get.z3Solver)
+        }
+    })
+    executor.invokeAll(callables.asJava).asScala.map({
+      future =>
+        try {
+          future.get()
+        } catch {
+          case e: ExecutionException => throw e.getCause
+        }
+    }).toList
+  }
+
+  // Forget what every worker's solver knows about the method whose session ends (e.g. variables, whose sorts may differ
+  // in the next method, and javac trees), including what Invariant memoizes for it. Each worker runs exactly one of the
+  // tasks, because none of them finishes before all of them are running
+  def resetWorkers(): Unit = {
+    if (!started) return
+    val barrier = new CyclicBarrier(NUM_OF_THREADS)
+    invokeAll((0 until NUM_OF_THREADS).map({
+      _ =>
+        (solver: Z3Solver) =>
+          barrier.await()
+          Invariant.purge(solver)
+          solver.reset()
+    }))
+  }
+
+  // Free the contexts of all workers (e.g. when ContextPool.closeAll frees the contexts of the calling threads), which
+  // are created again if the pool is used afterwards. Like resetWorkers, each worker runs exactly one of the tasks
+  def closeWorkers(): Unit = {
+    if (!started) return
+    val barrier = new CyclicBarrier(NUM_OF_THREADS)
+    invokeAll((0 until NUM_OF_THREADS).map({
+      _ =>
+        (solver: Z3Solver) =>
+          barrier.await()
+          Invariant.purge(solver)
+          currentWorker.get.closeSolver()
+    }))
+    started = false
+  }
+
+  def filter[T](elems: Seq[T], z3Solver: Z3Solver)(check: (T, Z3Solver) => Boolean): Seq[T] = {
+    elems.zip(map(elems, z3Solver)(check)).filter({ case (_, res) => res }).map({ case (elem, _) => elem })
+  }
+
+  def filterChunks[T](elems: Seq[T], z3Solver: Z3Solver)(check: (Seq[T], Z3Solver) => Seq[Boolean]): Seq[T] = {
+    elems.zip(mapChunks(elems, z3Solver)(check)).filter({ case (_, res) => res }).map({ case (elem, _) => elem })
+  }
+
+  // Return the first element (in the order of elems) on which check holds
+  def find[T](elems: Seq[T], z3Solver: Z3Solver)(check: (T, Z3Solver) => Boolean): Option[T] = {
+    findWithin(elems, z3Solver, () => false)(check)._1
+  }
+
+  /**
+    *
+    * @param stop whether to stop searching, which is asked between chunks (hence at least one chunk is checked)
+    * @return the first element (in the order of elems) on which check holds, and whether the search stopped before
+    *         checking all elements
+    */
+  def findWithin[T](elems: Seq[T], z3Solver: Z3Solver, stop: () => Boolean)(check: (T, Z3Solver) => Boolean): (Option[T], Boolean) = {
+    elems.grouped(NUM_OF_THREADS * CHUNK_SIZE).zipWithIndex.foreach({
+      case (chunk, i) =>
+        if (i > 0 && stop()) return (None, true)
+        val idx = map(chunk, z3Solver)(check).indexOf(true)
+        if (idx >= 0) return (Some(chunk(idx)), false)
+    })
+    (None, false)
+  }
+}
@@ -0,0 +1,71 @@
+package analysis
+
+import com.microsoft.z3.{Context, Solver}
+import utils.Utils
+
+/**
+  * @author Tianhan Lu
+  */
+// Kinds of queries that are issued during inference and verification
+object QueryKind extends Enumeration {
+  val BASE_CASE, INDUCTIVE_CASE, LOOP_INV, GLOBAL_INV, BOUND_EXISTS, BOUND_FORALL, OPTIMIZE, MODEL, OTHER = Value
+}
+
+/**
+  *
+  * @param name    the name that timings are reported under
+  * @param logic   the logic that the solver is specialized for (e.g. QF_LIA)
+  * @param tactics the tactics (applied in order) that the solver is built from
+  * @param timeout in milliseconds
+  */
+case class SolverProfile(name: String, logic: Option[String], tactics: List[String], timeout: Int) {
+  def mkSolver(ctx: Context): Solver = {
+    val solver = {
+      if (tactics.nonEmpty) {
+        ctx.mkSolver(tactics.map(t => ctx.mkTactic(t)).reduceLeft((t1, t2) => ctx.andThen(t1, t2)))
+      }
+      else {
+        logic match {
+          case Some(l) => ctx.mkSolver(l)
+          case None => ctx.mkSolver
+        }
+      }
+    }
+    val params = ctx.mkParams()
+    params.add("timeout", timeout)
+    solver.setParameters(params)
+    solver
+  }
+}
+
+object SolverProfile {
+  val TIMEOUT = 20000
+
+  val DEFAULT = SolverProfile("default", None, Nil, TIMEOUT)
+  val QF_LIA = SolverProfile("qf_lia", Some("QF_LIA"), Nil, TIMEOUT)
+  val SIMPLIFY_SMT = SolverProfile("simplify-solve_eqs-smt", None, List("simplify", "solve-eqs", "smt"), TIMEOUT)
+  // Eliminate quantifiers before solving, which suits queries that are not quantifier-free
+  val QE_SMT = SolverProfile("qe-smt", None, List("simplify", "qe", "smt"), TIMEOUT)
+
+  val ALL: List[SolverProfile] = List(DEFAULT, QF_LIA, SIMPLIFY_SMT, QE_SMT)
+
+  // Each kind of queries is solved under its own profile, which is given by name, e.g.
+  // -Dboundchecker.profile.bound_forall=qe-smt. Timings of every profile are reported by Z3Solver.printTime
+  val PROFILES: Map[QueryKind.Value, SolverProfile] = QueryKind.values.toList.map({
+    kind =>
+      val key = "boundchecker.profile." + kind.toString.toLowerCase
+      val profile = sys.props.get(key) match {
+        case Some(name) =>
+          ALL.find(p => p.name == name) match {
+            case Some(p) => p
+            case None =>
+              Utils.printRedString("[Exception] Unknown solver profile " + name + " of " + key + " (expected one of " + ALL.map(p => p.name).mkString(", ") + ")")
+              DEFAULT
+          }
+        case None => DEFAULT
+      }
+      kind -> profile
+  }).toMap
+
+  def of(kind: QueryKind.Value): SolverProfile = PROFILES.getOrElse(kind, DEFAULT)
+}
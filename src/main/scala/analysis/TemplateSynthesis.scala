@@ -0,0 +1,126 @@
+package analysis
+
+import boundchecker.Vars
+import com.microsoft.z3.enumerations.Z3_decl_kind
+import com.microsoft.z3.{BoolExpr, Expr, IntExpr, IntNum, Model, Quantifier}
+import utils.Utils
+
+import scala.collection.immutable.HashSet
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+// Synthesize invariants of the form (k11*v1 + ... + k1n*vn + k10 <= 0) /\ ... /\ (km1*v1 + ... + kmn*vn + km0 <= 0)
+// over the int-typed variables, where the coefficients are unknowns. The verification conditions of the template (which
+// are computed by PredTrans once) must hold for all valuations of the variables, which gives a single exists-forall
+// constraint over the unknowns, and each of its solutions is an invariant.
+// Coefficients of variables range over [-MAX_COEFF, MAX_COEFF] and are selected with if-then-else terms, such that the
+// constraint stays linear (instead of multiplying unknowns with variables)
+object TemplateSynthesis {
+  val DEBUG = false
+
+  val MAX_COEFF = 2
+  val MAX_CONST = 4
+  // The maximum number of invariants that are synthesized (i.e. the number of solutions of the constraint)
+  val MAX_NUM_OF_SOLUTIONS = 4
+
+  /**
+    *
+    * @param vars           the variables of the program
+    * @param numOfConjuncts the number of linear inequalities of the template
+    * @param vcOf           given an invariant, the assertion whose validity implies that it is an invariant
+    * @param z3Solver       the solver that the invariants belong to
+    * @return the synthesized invariants, which is empty if the constraint is unsatisfiable or Z3 gives up
+    */
+  def synthesize(vars: Vars,
+                 numOfConjuncts: Int,
+                 vcOf: BoolExpr => BoolExpr,
+                 z3Solver: Z3Solver): Set[BoolExpr] = {
+    val intVars = vars.allVars.toList.collect({ case v: IntExpr => v })
+    if (intVars.isEmpty || numOfConjuncts <= 0) return Set[BoolExpr]()
+
+    // One row of unknowns per conjunct, where the last unknown is the constant
+    val unknowns: List[List[IntExpr]] = List.fill(numOfConjuncts)(List.fill(intVars.size + 1)(z3Solver.mkRandIntVar()))
+    val template = Invariant.getConjunction(unknowns.map(row => mkInequality(intVars, row, z3Solver)), z3Solver)
+
+    val domain = unknowns.flatMap({
+      row =>
+        row.init.map(k => inRange(k, MAX_COEFF, z3Solver)) :+ inRange(row.last, MAX_CONST, z3Solver)
+    })
+    // Rule out the trivial conjuncts (i.e. constants), which in particular rules out true
+    val nonTrivial = unknowns.map(row => mkDisjunction(row.init.map(k => z3Solver.mkNe(k, z3Solver.mkIntVal(0))), z3Solver))
+    // Besides program variables, verification conditions may refer to fresh constants that loops havoc with (if
+    // Invariant.QUANTIFIER_FREE_VC), which are universally quantified as well
+    val vc = vcOf(template)
+    val toQuantify = (vars.allVars ++ constantsOf(vc)) -- unknowns.flatten
+    val constraint = z3Solver.mkForall(toQuantify.toArray, vc)
+
+    val start = System.nanoTime()
+    val models = z3Solver.models(constraint :: domain ++ nonTrivial, unknowns.flatten, MAX_NUM_OF_SOLUTIONS).toList
+    val invs = models.map({
+      model => Invariant.getConjunction(unknowns.map(row => mkInequality(intVars, row.map(k => valueOf(k, model, z3Solver)), z3Solver)), z3Solver)
+    }).toSet
+    if (DEBUG) println("[Template] Synthesized " + invs.size + " invariants in " + ("%.3f" format (System.nanoTime() - start).toDouble / Utils.NANO) + "s: " + invs)
+    invs
+  }
+
+  // The sum of coeffs(i)*vars(i) plus the last coefficient is at most 0. Coefficients are either unknowns (that
+  // select the multiple of a variable), or values (whose zero terms are dropped)
+  private def mkInequality(vars: List[IntExpr], coeffs: List[IntExpr], z3Solver: Z3Solver): BoolExpr = {
+    val terms = vars.zip(coeffs.init).flatMap({
+      case (v, k: IntNum) =>
+        val c = k.getInt
+        if (c == 0) None
+        else if (c == 1) Some(v)
+        else Some(z3Solver.mkMul(z3Solver.mkIntVal(c), v))
+      case (v, k) =>
+        Some((-MAX_COEFF to MAX_COEFF).filter(c => c != 0).foldLeft(z3Solver.mkIntVal(0): Expr)({
+          (acc, c) => z3Solver.mkIte(z3Solver.mkEq(k, z3Solver.mkIntVal(c)), z3Solver.mkMul(z3Solver.mkIntVal(c), v), acc)
+        }))
+    })
+    val sum = terms match {
+      case Nil => z3Solver.mkIntVal(0)
+      case t :: Nil => t
+      case _ => z3Solver.mkAdd(terms: _*)
+    }
+    val constant = coeffs.last match {
+      case k: IntNum => z3Solver.mkIntVal(-k.getInt)
+      case k => z3Solver.mkSub(z3Solver.mkIntVal(0), k)
+    }
+    z3Solver.mkLe(sum, constant)
+  }
+
+  private def inRange(k: IntExpr, bound: Int, z3Solver: Z3Solver): BoolExpr = {
+    z3Solver.mkAnd(z3Solver.mkGe(k, z3Solver.mkIntVal(-bound)), z3Solver.mkLe(k, z3Solver.mkIntVal(bound)))
+  }
+
+  private def mkDisjunction(exprs: List[BoolExpr], z3Solver: Z3Solver): BoolExpr = {
+    if (exprs.size == 1) exprs.head
+    else z3Solver.mkOr(exprs: _*)
+  }
+
+  // The uninterpreted constants in expr
+  private def constantsOf(expr: Expr): Set[Expr] = {
+    val visited = new mutable.HashSet[Int]
+    var found = new HashSet[Expr]
+    var stack: List[Expr] = List(expr)
+    while (stack.nonEmpty) {
+      val e = stack.head
+      stack = stack.tail
+      if (visited.add(e.getId)) {
+        if (e.isQuantifier) stack = e.asInstanceOf[Quantifier].getBody :: stack
+        else if (e.isConst && e.getFuncDecl.getDeclKind == Z3_decl_kind.Z3_OP_UNINTERPRETED) found += e
+        else if (e.isApp) stack = e.getArgs.toList ++ stack
+      }
+    }
+    found
+  }
+
+  private def valueOf(k: IntExpr, model: Model, z3Solver: Z3Solver): IntExpr = {
+    model.eval(k, true) match {
+      case n: IntNum => z3Solver.mkIntVal(n.getInt)
+      case _ => z3Solver.mkIntVal(0)
+    }
+  }
+}
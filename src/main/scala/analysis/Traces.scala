@@ -0,0 +1,97 @@
+package analysis
+
+import com.microsoft.z3.{Expr, IntNum}
+
+import scala.collection.immutable.HashMap
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+// Concrete states that are recorded at blocks (see Interpreter). A state is an array of the values of the variables in
+// names (in the same order), where booleans are 0 or 1
+class Traces(val names: IndexedSeq[String]) {
+  private val index: Map[String, Int] = names.zipWithIndex.toMap
+  private val states = new mutable.HashMap[Long, mutable.ArrayBuffer[Array[Int]]]
+
+  def record(blockId: Long, state: Array[Int]): Unit = {
+    val buffer = states.getOrElseUpdate(blockId, new mutable.ArrayBuffer[Array[Int]])
+    if (buffer.size < Traces.MAX_NUM_OF_STATES && !buffer.exists(s => java.util.Arrays.equals(s, state)))
+      buffer += state.clone()
+  }
+
+  def blockIds: Iterable[Long] = states.keys
+
+  def statesAt(blockId: Long): Seq[Array[Int]] = states.getOrElse(blockId, Nil)
+
+  // Whether a state that is recorded at the block falsifies pred. Predicates that use operators or variables that
+  // can not be evaluated are never falsified
+  def falsifies(blockId: Long, pred: Expr): Boolean = {
+    val recorded = statesAt(blockId)
+    if (recorded.isEmpty) false
+    else {
+      compile(pred) match {
+        case Some(f) => recorded.exists(state => f(state) == 0)
+        case None => false
+      }
+    }
+  }
+
+  // Compile an expression into a function of states, where booleans evaluate to 0 or 1. Division follows Z3 (instead
+  // of Java), because candidates are verified by Z3
+  private def compile(e: Expr): Option[Array[Int] => Long] = {
+    if (e.isIntNum) {
+      val v = e.asInstanceOf[IntNum].getInt64
+      Some(_ => v)
+    }
+    else if (e.isTrue) Some(_ => 1L)
+    else if (e.isFalse) Some(_ => 0L)
+    else if (e.isConst) index.get(e.getFuncDecl.getName.toString).map(i => (state: Array[Int]) => state(i).toLong)
+    else if (!e.isApp) None
+    else {
+      val compiled = e.getArgs.toList.map(arg => compile(arg))
+      if (compiled.exists(c => c.isEmpty)) return None
+      val args = compiled.map(c => c.get)
+
+      def bool(b: Boolean): Long = if (b) 1L else 0L
+
+      def binary(op: (Long, Long) => Long): Option[Array[Int] => Long] = {
+        if (args.size != 2) None
+        else {
+          val (l, r) = (args.head, args(1))
+          Some(state => op(l(state), r(state)))
+        }
+      }
+
+      if (e.isAdd) Some(state => args.foldLeft(0L)((acc, a) => acc + a(state)))
+      else if (e.isMul) Some(state => args.foldLeft(1L)((acc, a) => acc * a(state)))
+      else if (e.isSub) Some(state => args.tail.foldLeft(args.head(state))((acc, a) => acc - a(state)))
+      else if (e.isUMinus) Some(state => -args.head(state))
+      else if (e.isAnd) Some(state => bool(args.forall(a => a(state) != 0)))
+      else if (e.isOr) Some(state => bool(args.exists(a => a(state) != 0)))
+      else if (e.isNot) Some(state => bool(args.head(state) == 0))
+      else if (e.isImplies) binary((l, r) => bool(l == 0 || r != 0))
+      else if (e.isEq) binary((l, r) => bool(l == r))
+      else if (e.isLE) binary((l, r) => bool(l <= r))
+      else if (e.isLT) binary((l, r) => bool(l < r))
+      else if (e.isGE) binary((l, r) => bool(l >= r))
+      else if (e.isGT) binary((l, r) => bool(l > r))
+      else if (e.isITE) Some(state => if (args.head(state) != 0) args(1)(state) else args(2)(state))
+      else None
+    }
+  }
+}
+
+object Traces {
+  val MAX_NUM_OF_STATES = 256
+
+  // Traces of the methods that are being analyzed, by the ids of the blocks where states are recorded. Block ids are
+  // unique across methods
+  private var byBlock = new HashMap[Long, Traces]
+
+  def register(traces: Traces): Unit = Traces.synchronized(traces.blockIds.foreach(id => byBlock += (id -> traces)))
+
+  def unregister(traces: Traces): Unit = Traces.synchronized(byBlock = byBlock.filter({ case (_, t) => t ne traces }))
+
+  def of(blockId: Long): Option[Traces] = Traces.synchronized(byBlock.get(blockId))
+}
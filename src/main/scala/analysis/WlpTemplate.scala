@@ -0,0 +1,59 @@
+package analysis
+
+import boundchecker.Vars
+import com.microsoft.z3.{BoolExpr, Expr, FuncDecl, Quantifier}
+import org.checkerframework.dataflow.cfg.block.Block
+import org.jgrapht.Graph
+import org.jgrapht.graph.DefaultEdge
+
+import scala.collection.mutable
+
+/**
+  * @author Tianhan Lu
+  */
+/**
+  *
+  * @param vars        the program variables, in the order of the arguments of the placeholder
+  * @param placeholder an uninterpreted predicate over vars, which stands for the post-condition
+  * @param wlp         the weakest precondition of the placeholder (None if it is not computed)
+  * @param z3Solver    the solver that the above belong to
+  */
+// The weakest precondition of a symbolic post-condition P(v1, ..., vn), such that the weakest precondition of a
+// concrete post-condition is obtained by replacing every application P(e1, ..., en) with the post-condition where each
+// vi is substituted by ei. This is sound because wlpProg only substitutes into (and never inspects) its post-condition
+class WlpTemplate(val vars: Array[Expr], val placeholder: FuncDecl, val wlp: Option[BoolExpr], z3Solver: Z3Solver) {
+  def instantiate(post: BoolExpr): Option[BoolExpr] = {
+    // Weakest preconditions are DAGs, whose shared nodes are rewritten only once
+    val memo = new mutable.HashMap[Int, Expr]
+
+    def rewrite(e: Expr): Expr = {
+      memo.getOrElseUpdate(e.getId, {
+        if (e.isQuantifier) {
+          // Bound variables (i.e. de Bruijn indices) in the arguments of the placeholder are substituted into post as
+          // is, which is fine because post does not have quantifiers of its own
+          val q = e.asInstanceOf[Quantifier]
+          z3Solver.ctx.mkQuantifier(q.isUniversal, q.getBoundVariableSorts, q.getBoundVariableNames, rewrite(q.getBody),
+            q.getWeight, q.getPatterns, null, null, null)
+        }
+        else if (e.isApp && e.getFuncDecl == placeholder) post.substitute(vars, e.getArgs.map(arg => rewrite(arg)))
+        else if (e.isApp && e.getNumArgs > 0) e.update(e.getArgs.map(arg => rewrite(arg)))
+        else e
+      })
+    }
+
+    wlp.map(w => rewrite(w).asInstanceOf[BoolExpr])
+  }
+}
+
+object WlpTemplate {
+  def apply(graph: Graph[Block, DefaultEdge],
+            root: Block,
+            exit: Block,
+            vars: Vars,
+            z3Solver: Z3Solver): WlpTemplate = {
+    val allVars = vars.allVars.toArray
+    val placeholder = z3Solver.mkUnintFun(z3Solver.mkFreshName(), allVars.map(v => v.getSort), z3Solver.ctx.getBoolSort)
+    val post = placeholder.apply(allVars: _*).asInstanceOf[BoolExpr]
+    new WlpTemplate(allVars, placeholder, PredTrans.wlpProg(graph, post, root, exit, vars, z3Solver).get(root), z3Solver)
+  }
+}
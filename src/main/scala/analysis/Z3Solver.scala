@@ -2,8 +2,10 @@ package analysis
 
 import utils.Utils
 import com.microsoft.z3._
+import com.sun.source.tree.Tree
 
-import scala.collection.immutable.HashMap
+import scala.collection.immutable.{HashMap, HashSet}
+import scala.collection.mutable
 
 
 /**
@@ -12,17 +14,41 @@ import scala.collection.immutable.HashMap
 class Z3Solver {
   val ctx: Context = new Context
   var vars: Map[String, Expr] = new HashMap[String, Expr]
+  var freshNames: Set[String] = new HashSet[String] // Names of the variables that are generated by mkFreshName
   val DEBUG: Boolean = false
-  var queries = new HashMap[String, Boolean]
-
+  val queries = new QueryCache(Z3Solver.QUERY_CACHE_SIZE)
+  var numOfUses: Int = 0 // The number of methods that have been analyzed with this solver (see ContextPool)
+
+  // Terms that are built by mk*, keyed on their operators and (the identities of) their operands. Building a term
+  // that is already built returns the same object, without calling into Z3
+  private val terms = new mutable.HashMap[TermKey, Expr]
+  private val intVals = new mutable.HashMap[Int, IntNum]
+  // Translations of trees (see PredTrans.transExpr)
+  val trees = new mutable.HashMap[Tree, Expr]
+  // Mirrors the assertions of solver (since it is created), such that optimization queries reuse its state
+  private var optimizeSession: Option[OptimizeSession] = None
+
+  // Backends of the profiles that have been used
+  private var backends = new HashMap[SolverProfile, SolverBackend]
+
+  // Keeps the assertions that are added via mkAssert, which are only seen by the native backend of the default profile
   val solver: Solver = {
     // cxt.setPrintMode(Z3_PRINT_LOW_LEVEL)
-    val solver = ctx.mkSolver
-    val params = ctx.mkParams()
-    params.add("timeout", 20000)
-    solver.setParameters(params)
     // assert: for all x, len(x) is non-negative (use pattern?)
-    solver
+    SolverProfile.DEFAULT.mkSolver(ctx)
+  }
+
+  def backendOf(profile: SolverProfile): SolverBackend = {
+    backends.get(profile) match {
+      case Some(b) => b
+      case None =>
+        val b = {
+          if (SolverBackend.BACKEND != SolverBackend.PROCESS && profile == SolverProfile.DEFAULT) new NativeBackend(solver)
+          else SolverBackend(ctx, profile)
+        }
+        backends += (profile -> b)
+        b
+    }
   }
 
   def mkPattern(expr: Expr*): Pattern = ctx.mkPattern(expr: _*)
@@ -33,53 +59,263 @@ class Z3Solver {
 
   def applyLenFun(expr: Expr): Expr = mkLenFun(expr.getSort).apply(expr)*/
 
-  private def checkSAT: Boolean = {
+  private def checkSAT: Boolean = checkSATUnder(backendOf(SolverProfile.DEFAULT), SolverProfile.DEFAULT, QueryKind.OTHER, 0)
+
+  private def checkSATUnder(mySolver: SolverBackend,
+                            profile: SolverProfile,
+                            kind: QueryKind.Value,
+                            formulaSize: Int,
+                            assumptions: BoolExpr*): Boolean = {
+    interpretSolverOutput(checkStatus(mySolver, profile, kind, formulaSize, assumptions: _*))
+  }
+
+  // Check the assertions of mySolver (which must belong to this context) and record the metrics of the query
+  private[analysis] def checkStatus(mySolver: SolverBackend,
+                                    profile: SolverProfile,
+                                    kind: QueryKind.Value,
+                                    formulaSize: Int,
+                                    assumptions: BoolExpr*): Status = {
     val start = System.nanoTime()
-    val res = interpretSolverOutput(solver.check)
+    val status = mySolver.check(assumptions: _*)
     val end = System.nanoTime()
-    Z3Solver.TOTAL_TIME += (end - start).toDouble / Utils.NANO
-    Z3Solver.TOTAL_QUERY += 1
+    val time = (end - start).toDouble / Utils.NANO
+    Z3Solver.recordTime(profile, time)
+    SolverMetrics.recordQuery(
+      kind,
+      time,
+      status,
+      if (status == Status.UNKNOWN) mySolver.reasonUnknown else "",
+      formulaSize,
+      if (SolverMetrics.Z3_STATISTICS) mySolver.statistics else None
+    )
     if (DEBUG) Z3Solver.printTime()
-    res
+    status
   }
 
-  def checkSAT(ast: AST): Boolean = {
-    queries.get(ast.toString) match {
+  def checkSAT(ast: AST): Boolean = checkSAT(ast, QueryKind.OTHER)
+
+  def checkSAT(ast: AST, kind: QueryKind.Value): Boolean = {
+    val expr = ast.asInstanceOf[Expr]
+    val key = QueryCache.keyOf(expr, name => freshNames.contains(name))
+    val cached = lookup(key, expr, kind)
+    SolverMetrics.recordCacheLookup(kind, cached.isDefined)
+    cached match {
       case Some(res) => res
       case None =>
-        push()
-        mkAssert(ast)
-        val res = checkSAT
-        pop()
-        queries = queries + (ast.toString -> res)
+        val profile = SolverProfile.of(kind)
+        val res = {
+          if (SolverBackend.BACKEND == SolverBackend.POOL) {
+            checkOnPool(List(expr.asInstanceOf[BoolExpr]), profile, kind).head match {
+              case Some(r) => r
+              case None => return true // Unknown results are not cached
+            }
+          }
+          else {
+            val mySolver = backendOf(profile)
+            mySolver.push()
+            try {
+              mySolver.add(expr.asInstanceOf[BoolExpr])
+              checkSATUnder(mySolver, profile, kind, SolverMetrics.sizeOf(expr))
+            } finally {
+              mySolver.pop()
+            }
+          }
+        }
+        store(key, expr, kind, res)
         res
     }
   }
 
+  // Results of queries are looked up in queries, and then in the persistent cache (if any), where queries that are
+  // checked with assertions of solver (see mkAssert) are left out, because the assertions are not part of their keys
+  private def lookup(key: QueryKey, expr: Expr, kind: QueryKind.Value): Option[Boolean] = {
+    queries.get(key) match {
+      case Some(res) => Some(res)
+      case None =>
+        persistentDigestOf(expr, kind).flatMap({
+          case (cache, digest) =>
+            val res = cache.get(digest)
+            res.foreach(r => queries.put(key, expr, r))
+            res
+        })
+    }
+  }
+
+  private def store(key: QueryKey, expr: Expr, kind: QueryKind.Value, res: Boolean): Unit = {
+    queries.put(key, expr, res)
+    persistentDigestOf(expr, kind).foreach({ case (cache, digest) => cache.put(digest, res) })
+  }
+
+  private def persistentDigestOf(expr: Expr, kind: QueryKind.Value): Option[(PersistentCache, Digest)] = {
+    PersistentCache.instance match {
+      case Some(cache) if solver.getNumAssertions == 0 =>
+        val config = SolverBackend.BACKEND + ":" + SolverProfile.of(kind)
+        Some((cache, PersistentCache.digestOf(expr, name => freshNames.contains(name), config)))
+      case _ => None
+    }
+  }
+
   /**
     *
     * @param n: We want n models
     * @param expr: The expression of interest
-    * @return n models s.t. each model evaluates expr to a different value
-    *         Note: This method has side effects!
+    * @return at most n models s.t. each model evaluates expr to a different value
     */
-  def findNModels(n: Int, expr: Expr): List[Model] = {
-    var list = List[Model]()
-    while (list.size < n) {
-      checkSAT
-      val model = solver.getModel
-      list = model :: list
-      mkAssert(mkNe(expr, model.eval(expr, false)))
+  def findNModels(n: Int, expr: Expr): List[Model] = models(Nil, List(expr), n).toList
+
+  /**
+    *
+    * @param assertions the assertions that models satisfy, in addition to the assertions of solver
+    * @param projection the variables (or expressions) on which any two models differ
+    * @param cap        the maximum number of models
+    * @param batchSize  the number of models that are computed at a time
+    * @return a lazy iterator of models, which leaves the state of solver unchanged
+    */
+  def models(assertions: Seq[BoolExpr],
+             projection: Seq[Expr],
+             cap: Int = Z3Solver.MAX_NUM_OF_MODELS,
+             batchSize: Int = 1): ModelIterator = {
+    new ModelIterator(this, solver.getAssertions.toList ++ assertions, projection, cap, batchSize)
+  }
+
+  def checkSATWithAssumptions(assumes: List[String]): Boolean = checkSATUnder(backendOf(SolverProfile.DEFAULT), SolverProfile.DEFAULT, QueryKind.OTHER, 0, assumes.map(assume => ctx.mkBoolConst(assume)): _*)
+
+  // Return a model of expr if it is satisfiable. Models are only available from native backends, hence such queries are
+  // checked by solver (under the default profile) if the backend of kind is not native. Models are not cached
+  def findModel(expr: BoolExpr, kind: QueryKind.Value = QueryKind.OTHER): Option[Model] = {
+    val (mySolver, profile) = backendOf(SolverProfile.of(kind)) match {
+      case native: NativeBackend => (native, SolverProfile.of(kind))
+      case _ => (new NativeBackend(solver), SolverProfile.DEFAULT)
+    }
+    mySolver.push()
+    try {
+      mySolver.add(expr)
+      if (checkSATUnder(mySolver, profile, kind, SolverMetrics.sizeOf(expr))) Some(mySolver.solver.getModel)
+      else None
+    } finally {
+      mySolver.pop()
+    }
+  }
+
+  /**
+    *
+    * @param hypotheses quantifier-free formulas, whose free variables are implicitly universally quantified
+    * @param goal       a quantifier-free formula
+    * @return the indices of a subset of hypotheses (an unsat core) that implies goal, if hypotheses imply goal. Like
+    *         models, cores are only available from native backends and are not cached
+    */
+  def findCore(hypotheses: Seq[BoolExpr], goal: BoolExpr, kind: QueryKind.Value = QueryKind.OTHER): Option[Seq[Int]] = {
+    val (mySolver, profile) = backendOf(SolverProfile.of(kind)) match {
+      case native: NativeBackend => (native, SolverProfile.of(kind))
+      case _ => (new NativeBackend(solver), SolverProfile.DEFAULT)
+    }
+    // Each hypothesis is guarded by its own indicator literal, which is assumed
+    val indicators = hypotheses.indices.map(_ => ctx.mkBoolConst(mkFreshName()))
+    mySolver.push()
+    try {
+      hypotheses.zip(indicators).foreach({ case (h, ind) => mySolver.add(mkImplies(ind, h)) })
+      mySolver.add(mkNot(goal))
+      checkStatus(mySolver, profile, kind, SolverMetrics.sizeOf(goal), indicators: _*) match {
+        case Status.UNSATISFIABLE =>
+          val core = mySolver.solver.getUnsatCore.toSet[Expr]
+          Some(indicators.indices.filter(i => core.contains(indicators(i))))
+        case _ => None // Timeouts are treated as failures
+      }
+    } finally {
+      mySolver.pop()
     }
-    list
   }
 
-  def checkSATWithAssumptions(assumes: List[String]): Boolean =
-    interpretSolverOutput(solver.check(assumes.map(assume => ctx.mkBoolConst(assume)): _*))
+  /**
+    *
+    * @param formulas the queries to check in one solver session
+    * @param shared   the assertions that are shared by all queries, which are only asserted once
+    * @return whether each query (together with the shared assertions) is satisfiable, in the same order as formulas.
+    *         Each query is guarded by its own indicator literal and checked under the assumption of the literal,
+    *         such that the lemmas learned when checking a query are reused when checking the others
+    */
+  def checkSATBatch(formulas: Seq[BoolExpr], shared: Seq[BoolExpr] = Nil, kind: QueryKind.Value = QueryKind.OTHER): Seq[Boolean] = {
+    val exprs = formulas.map(formula => if (shared.isEmpty) formula else mkAnd((shared :+ formula): _*))
+    val keys = exprs.map(expr => QueryCache.keyOf(expr, name => freshNames.contains(name)))
+    var results = new HashMap[QueryKey, Boolean]
+    var seen = new HashSet[QueryKey]
+    // Queries that are not cached, where queries with a same key are only checked once
+    val toCheck = keys.zip(formulas).zip(exprs).foldLeft(List[((QueryKey, BoolExpr), Expr)]())({
+      case (acc, entry@((key, _), expr)) =>
+        if (seen.contains(key)) acc
+        else {
+          seen += key
+          val cached = lookup(key, expr, kind)
+          SolverMetrics.recordCacheLookup(kind, cached.isDefined)
+          cached match {
+            case Some(res) =>
+              results += (key -> res)
+              acc
+            case None => entry :: acc
+          }
+        }
+    }).reverse
+    if (toCheck.nonEmpty && SolverBackend.BACKEND == SolverBackend.POOL) {
+      // Each query is checked from scratch (together with the shared assertions), but all of them at the same time
+      val res = checkOnPool(toCheck.map({ case (_, expr) => expr.asInstanceOf[BoolExpr] }), SolverProfile.of(kind), kind)
+      toCheck.zip(res).foreach({
+        case (((key, _), expr), Some(r)) =>
+          store(key, expr, kind, r)
+          results += (key -> r)
+        case (((key, _), _), None) => results += (key -> true) // Unknown results are not cached
+      })
+    }
+    else if (toCheck.nonEmpty) {
+      val profile = SolverProfile.of(kind)
+      val mySolver = backendOf(profile)
+      mySolver.push()
+      try {
+        shared.foreach(assertion => mySolver.add(assertion))
+        toCheck.foreach({
+          case ((key, formula), expr) =>
+            val indicator = ctx.mkBoolConst(mkFreshName())
+            mySolver.add(mkImplies(indicator, formula))
+            val res = checkSATUnder(mySolver, profile, kind, SolverMetrics.sizeOf(formula), indicator)
+            store(key, expr, kind, res)
+            results += (key -> res)
+        })
+      } finally {
+        mySolver.pop()
+      }
+    }
+    keys.map(key => results(key))
+  }
 
-  def push(): Unit = solver.push()
+  // Serialize formulas in this thread (because the context is not thread-safe), and check them on ProcessPool. A query
+  // whose process times out (or fails) is None, which callers take as satisfiable, i.e. a formula whose negation is
+  // checked is not known to be valid. Hence a bad query only fails itself, instead of the other queries of a batch
+  private def checkOnPool(formulas: Seq[BoolExpr], profile: SolverProfile, kind: QueryKind.Value): Seq[Option[Boolean]] = {
+    val scripts = formulas.map(formula => SmtLib.script(profile, formula))
+    val sizes = formulas.map(formula => SolverMetrics.sizeOf(formula))
+    ProcessPool.checkAll(scripts, profile.timeout).zip(sizes).map({
+      case (res, size) =>
+        Z3Solver.recordTime(profile, res.time)
+        SolverMetrics.recordQuery(kind, res.time, res.status, res.reasonUnknown, size, None)
+        res.status match {
+          case Status.UNKNOWN => None
+          case status => Some(interpretSolverOutput(status))
+        }
+    })
+  }
 
-  def pop(): Unit = solver.pop()
+  def push(): Unit = {
+    solver.push()
+    optimizeSession.foreach(s => s.push())
+  }
+
+  def pop(): Unit = {
+    solver.pop()
+    optimizeSession.foreach({
+      s =>
+        if (s.depth > 0) s.pop()
+        else optimizeSession = None // The assertions that the session is created with are popped
+    })
+  }
 
   def getUNSATCore: String = sys.error("Unimp")
 
@@ -100,68 +336,90 @@ class Z3Solver {
 
   def mkNone(sort: Sort): Expr = ctx.mkConst("none", sort)
 
-  def mkTrue(): BoolExpr = ctx.mkTrue()
+  private def hashCons[T <: Expr](op: String, args: AST*)(mk: => T): T = {
+    val key = new TermKey(op, args.toArray)
+    terms.get(key) match {
+      case Some(expr) => expr.asInstanceOf[T]
+      case None =>
+        if (terms.size >= Z3Solver.MAX_NUM_OF_TERMS) terms.clear()
+        val expr = mk
+        terms.put(key, expr)
+        expr
+    }
+  }
+
+  private lazy val trueVal: BoolExpr = ctx.mkTrue()
+
+  private lazy val falseVal: BoolExpr = ctx.mkFalse()
 
-  def mkFalse(): BoolExpr = ctx.mkFalse()
+  def mkTrue(): BoolExpr = trueVal
 
-  def mkIntVal(i: Int): IntNum = ctx.mkInt(i)
+  def mkFalse(): BoolExpr = falseVal
 
-  def mkBoolVal(b: Boolean): BoolExpr = ctx.mkBool(b)
+  def mkIntVal(i: Int): IntNum = intVals.getOrElseUpdate(i, ctx.mkInt(i))
+
+  def mkBoolVal(b: Boolean): BoolExpr = if (b) trueVal else falseVal
 
   def mkRange(lb: ArithExpr, e: ArithExpr, ub: ArithExpr): BoolExpr = ctx.mkAnd(ctx.mkLe(e, ub), ctx.mkLe(lb, e))
 
   def mkAssert(asts: AST*): Unit = {
-    asts.foreach(ast => solver.add(ast.asInstanceOf[BoolExpr]))
+    asts.foreach({
+      ast =>
+        solver.add(ast.asInstanceOf[BoolExpr])
+        optimizeSession.foreach(s => s.add(ast.asInstanceOf[BoolExpr]))
+    })
   }
 
-  def mkNot(o: AST): BoolExpr = ctx.mkNot(o.asInstanceOf[BoolExpr])
+  def mkNot(o: AST): BoolExpr = hashCons("not", o)(ctx.mkNot(o.asInstanceOf[BoolExpr]))
 
-  def mkEq(lhs: AST, rhs: AST): BoolExpr = ctx.mkEq(lhs.asInstanceOf[Expr], rhs.asInstanceOf[Expr])
+  def mkEq(lhs: AST, rhs: AST): BoolExpr = hashCons("eq", lhs, rhs)(ctx.mkEq(lhs.asInstanceOf[Expr], rhs.asInstanceOf[Expr]))
 
-  def mkNe(lhs: AST, rhs: AST): BoolExpr = ctx.mkNot(ctx.mkEq(lhs.asInstanceOf[Expr], rhs.asInstanceOf[Expr]))
+  def mkNe(lhs: AST, rhs: AST): BoolExpr = hashCons("ne", lhs, rhs)(ctx.mkNot(ctx.mkEq(lhs.asInstanceOf[Expr], rhs.asInstanceOf[Expr])))
 
-  def mkGt(lhs: AST, rhs: AST): BoolExpr = ctx.mkGt(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkGt(lhs: AST, rhs: AST): BoolExpr = hashCons("gt", lhs, rhs)(ctx.mkGt(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkLt(lhs: AST, rhs: AST): BoolExpr = ctx.mkLt(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkLt(lhs: AST, rhs: AST): BoolExpr = hashCons("lt", lhs, rhs)(ctx.mkLt(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkGe(lhs: AST, rhs: AST): BoolExpr = ctx.mkGe(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkGe(lhs: AST, rhs: AST): BoolExpr = hashCons("ge", lhs, rhs)(ctx.mkGe(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkLe(lhs: AST, rhs: AST): BoolExpr = ctx.mkLe(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkLe(lhs: AST, rhs: AST): BoolExpr = hashCons("le", lhs, rhs)(ctx.mkLe(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkAdd(lhs: AST, rhs: AST): ArithExpr = ctx.mkAdd(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkAdd(lhs: AST, rhs: AST): ArithExpr = hashCons("add", lhs, rhs)(ctx.mkAdd(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
   def mkAdd(ast: AST*): ArithExpr = {
     if (ast.isEmpty) mkIntVal(0)
-    else ctx.mkAdd(ast.map(a => a.asInstanceOf[ArithExpr]): _*)
+    else hashCons("add", ast: _*)(ctx.mkAdd(ast.map(a => a.asInstanceOf[ArithExpr]): _*))
   }
 
-  def mkSub(lhs: AST, rhs: AST): ArithExpr = ctx.mkSub(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkSub(lhs: AST, rhs: AST): ArithExpr = hashCons("sub", lhs, rhs)(ctx.mkSub(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkMul(lhs: AST, rhs: AST): ArithExpr = ctx.mkMul(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkMul(lhs: AST, rhs: AST): ArithExpr = hashCons("mul", lhs, rhs)(ctx.mkMul(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkDiv(lhs: AST, rhs: AST): ArithExpr = ctx.mkDiv(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr])
+  def mkDiv(lhs: AST, rhs: AST): ArithExpr = hashCons("div", lhs, rhs)(ctx.mkDiv(lhs.asInstanceOf[ArithExpr], rhs.asInstanceOf[ArithExpr]))
 
-  def mkRem(lhs: AST, rhs: AST): IntExpr = ctx.mkMod(lhs.asInstanceOf[IntExpr], rhs.asInstanceOf[IntExpr])
+  def mkRem(lhs: AST, rhs: AST): IntExpr = hashCons("rem", lhs, rhs)(ctx.mkMod(lhs.asInstanceOf[IntExpr], rhs.asInstanceOf[IntExpr]))
 
-  def mkImplies(lhs: AST, rhs: AST): BoolExpr = ctx.mkImplies(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr])
+  def mkImplies(lhs: AST, rhs: AST): BoolExpr = hashCons("implies", lhs, rhs)(ctx.mkImplies(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr]))
 
-  def mkAnd(lhs: AST, rhs: AST): BoolExpr = ctx.mkAnd(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr])
+  def mkAnd(lhs: AST, rhs: AST): BoolExpr = hashCons("and", lhs, rhs)(ctx.mkAnd(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr]))
 
   def mkAnd(ast: AST*): BoolExpr = {
     if (ast.length <= 1) assert(false)
     if (ast.isEmpty) assert(false)
-    ctx.mkAnd(ast.map(a => a.asInstanceOf[BoolExpr]): _*)
+    hashCons("and", ast: _*)(ctx.mkAnd(ast.map(a => a.asInstanceOf[BoolExpr]): _*))
   }
 
-  def mkOr(lhs: AST, rhs: AST): BoolExpr = ctx.mkOr(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr])
+  def mkOr(lhs: AST, rhs: AST): BoolExpr = hashCons("or", lhs, rhs)(ctx.mkOr(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr]))
 
   def mkOr(ast: AST*): BoolExpr = {
     if (ast.length <= 1) assert(false)
     if (ast.isEmpty) assert(false)
-    ctx.mkOr(ast.map(a => a.asInstanceOf[BoolExpr]): _*)
+    hashCons("or", ast: _*)(ctx.mkOr(ast.map(a => a.asInstanceOf[BoolExpr]): _*))
   }
 
-  def mkXor(lhs: AST, rhs: AST): BoolExpr = ctx.mkXor(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr])
+  def mkXor(lhs: AST, rhs: AST): BoolExpr = hashCons("xor", lhs, rhs)(ctx.mkXor(lhs.asInstanceOf[BoolExpr], rhs.asInstanceOf[BoolExpr]))
+
+  def mkIte(cond: AST, lhs: AST, rhs: AST): Expr = hashCons("ite", cond, lhs, rhs)(ctx.mkITE(cond.asInstanceOf[BoolExpr], lhs.asInstanceOf[Expr], rhs.asInstanceOf[Expr]))
 
   def mkIntVar(s: String): IntExpr = {
     vars.get(s) match {
@@ -174,11 +432,7 @@ class Z3Solver {
   }
 
   def mkRandIntVar(): IntExpr = {
-    var name = Utils.genRandStr()
-    while (vars.contains(name)) {
-      name = Utils.genRandStr()
-    }
-    mkIntVar(name)
+    mkIntVar(mkFreshName())
   }
 
   def mkBoolVar(s: String): BoolExpr = {
@@ -192,11 +446,7 @@ class Z3Solver {
   }
 
   def mkRandBoolVar(): BoolExpr = {
-    var name = Utils.genRandStr()
-    while (vars.contains(name)) {
-      name = Utils.genRandStr()
-    }
-    mkBoolVar(name)
+    mkBoolVar(mkFreshName())
   }
 
   def mkVar(s: String, sort: Sort): Expr = {
@@ -210,11 +460,33 @@ class Z3Solver {
   }
 
   def mkRandVar(sort: Sort): Expr = {
+    mkVar(mkFreshName(), sort)
+  }
+
+  // Generate a variable name that is never used before. Queries that only differ in such names share cache entries
+  def mkFreshName(): String = {
     var name = Utils.genRandStr()
-    while (vars.contains(name)) {
+    while (vars.contains(name) || freshNames.contains(name)) {
       name = Utils.genRandStr()
     }
-    mkVar(name, sort)
+    freshNames += name
+    name
+  }
+
+  // Move an expression (that may be created in another context) into this solver's context. Translation reads the
+  // source context, which is not thread-safe, hence workers that translate from the same context take turns
+  def translate[T <: Expr](expr: T): T = Z3Solver.TRANSLATION_LOCK.synchronized(expr.translate(ctx).asInstanceOf[T])
+
+  // Move a variable into this solver's context, such that later calls to mkIntVar, mkBoolVar or mkVar return it
+  def translateVar(v: Expr): Expr = {
+    val name = Z3Solver.TRANSLATION_LOCK.synchronized(v.toString)
+    vars.get(name) match {
+      case Some(expr) => expr
+      case None =>
+        val expr = translate(v)
+        vars += (name -> expr)
+        expr
+    }
   }
 
   def mkUnintFun(s: String, in: Array[Sort], out: Sort): FuncDecl = ctx.mkFuncDecl(s, in, out)
@@ -231,21 +503,53 @@ class Z3Solver {
     *
     * @param obj the objective to optimize for
     * @param max maximize or minimize
+    * @return the optimum, or Integer.MAX_VALUE if it is unbounded, unknown or not an Int (see optimizer for typed results)
     */
   def optimize(obj: Expr, max: Boolean = true): Integer = {
-    val opt = ctx.mkOptimize
-    val objExpr = if (max) opt.MkMaximize(obj) else opt.MkMinimize(obj)
-    opt.Add(solver.getAssertions: _*)
-    val check = opt.Check()
-    // println(check, obj, objExpr)
-    // println(getAssertions)
-    try {
-      Integer.parseInt(objExpr.toString)
-    } catch {
-      case e: Exception => Integer.MAX_VALUE
+    optimizer.optimize(List((obj, max))).head match {
+      case Finite(v) if v.isValidInt => v.toInt
+      case _ => Integer.MAX_VALUE
     }
   }
 
+  // An optimization session over the assertions of solver, which is created when it is first used
+  def optimizer: OptimizeSession = {
+    optimizeSession match {
+      case Some(s) => s
+      case None =>
+        val s = new OptimizeSession(ctx, SolverProfile.of(QueryKind.OPTIMIZE))
+        s.add(solver.getAssertions: _*)
+        optimizeSession = Some(s)
+        s
+    }
+  }
+
+  // Forget what is specific to a method, but keep the context alive. Cached queries remain valid (and reusable), because
+  // their keys only refer to ASTs of this context
+  def reset(): Unit = {
+    solver.reset()
+    backends.values.foreach(b => b.reset())
+    vars = new HashMap[String, Expr]
+    terms.clear()
+    intVals.clear()
+    trees.clear()
+    optimizeSession = None
+  }
+
+  // Free the native memory of the context. Neither this solver nor expressions created by it can be used afterwards
+  def close(): Unit = {
+    queries.clear()
+    backends.values.foreach(b => b.close())
+    backends = new HashMap[SolverProfile, SolverBackend]
+    vars = new HashMap[String, Expr]
+    freshNames = new HashSet[String]
+    terms.clear()
+    intVals.clear()
+    trees.clear()
+    optimizeSession = None
+    ctx.close()
+  }
+
   override def toString: String = solver.getAssertions.foldLeft("") { (acc, assertion) => acc+assertion+"\n"}
 }
 
@@ -253,5 +557,50 @@ object Z3Solver {
   var TOTAL_TIME: Double = 0
   var TOTAL_QUERY: Int = 0
 
-  def printTime(): Unit = Utils.printRedString("Z3's total time is: "+("%.3f" format TOTAL_TIME)+"s for " + TOTAL_QUERY + " queries")
-}
\ No newline at end of file
+  // Profile name -> (total time, # of queries)
+  var PROFILE_TIME = new HashMap[String, (Double, Int)]
+
+  val QUERY_CACHE_SIZE = 10000
+  val MAX_NUM_OF_MODELS = 100
+  // The hash-consing table is cleared when it grows beyond this size (e.g. for solvers that are never reset)
+  val MAX_NUM_OF_TERMS = 100000
+
+  // Held while reading an expression of another context (see translate), which may be in use by other threads
+  private val TRANSLATION_LOCK = new Object
+
+  def recordTime(profile: SolverProfile, time: Double): Unit = {
+    Z3Solver.synchronized {
+      TOTAL_TIME += time
+      TOTAL_QUERY += 1
+      val (t, n) = PROFILE_TIME.getOrElse(profile.name, (0.0, 0))
+      PROFILE_TIME += (profile.name -> (t + time, n + 1))
+    }
+  }
+
+  def printTime(): Unit = {
+    Utils.printRedString("Z3's total time is: "+("%.3f" format TOTAL_TIME)+"s for " + TOTAL_QUERY + " queries")
+    PROFILE_TIME.foreach({
+      case (name, (t, n)) => Utils.printRedString("  Profile " + name + ": " + ("%.3f" format t) + "s for " + n + " queries")
+    })
+    SolverMetrics.printMetrics()
+    Utils.printRedString("Query cache's hit rate is: " + Utils.getPercentage(QueryCache.getHitRate) + " (" + QueryCache.TOTAL_HITS + " hits and " + QueryCache.TOTAL_MISSES + " misses)")
+    PersistentCache.printStats()
+  }
+}
+
+// Operands are compared by reference, which is sufficient because operands are usually built by hash-consing, and
+// is cheaper than comparing ASTs (which calls into Z3)
+private class TermKey(val op: String, val args: Array[AST]) {
+  private val hash = args.foldLeft(op.hashCode)((acc, arg) => acc * 31 + System.identityHashCode(arg))
+
+  override def hashCode(): Int = hash
+
+  override def equals(obj: Any): Boolean = {
+    obj match {
+      case key: TermKey =>
+        hash == key.hashCode() && op == key.op && args.length == key.args.length &&
+          args.indices.forall(i => args(i) eq key.args(i))
+      case _ => false
+    }
+  }
+}
@@ -1,6 +1,6 @@
 package boundchecker
 
-import analysis.{Invariant, PredTrans, Z3Solver}
+import analysis.{AbstractInterpreter, Budget, ConeOfInfluence, ContextPool, Facts, Interpreter, Invariant, PredTrans, QueryKind, SolverMetrics, SolverPool, Traces, Z3Solver}
 import com.microsoft.z3.{BoolExpr, Expr}
 import com.sun.source.tree._
 import org.checkerframework.common.basetype.{BaseAnnotatedTypeFactory, BaseTypeChecker, BaseTypeVisitor}
@@ -24,13 +24,16 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
   val DEBUG_GLOBAL_INV = false
   val DEBUG_VERIFICATION = false
 
-  var cfgs = new HashMap[MethodTree, MyCFG]()
-  var solvers = new HashMap[MethodTree, Z3Solver]
-  var localInvs = new HashMap[MethodTree, HashMap[Tree, Set[BoolExpr]]]
-  var globalInvs = new HashMap[MethodTree, Set[BoolExpr]]
-  var assumptions = new HashMap[MethodTree, Set[BoolExpr]] // Additional unchecked global invariants
-  var bounds = new HashMap[MethodTree, Set[BoolExpr]]
-  var vars = new HashMap[MethodTree, Vars]
+  // If true, then statements are collected while visiting a method, and global invariants are verified against all of
+  // them at once (see Invariant.verifyGlobInvs), instead of being checked one statement at a time
+  val BATCH_GLOBAL_INV = true
+  // If true (and BATCH_GLOBAL_INV), then global invariants are the largest subset of the candidates that is inductive
+  // relative to itself and the users' global invariants (see Invariant.largestInductiveSubset), instead of the
+  // candidates that are inductive on their own
+  val RELATIVE_GLOBAL_INV = true
+
+  // Methods that are being visited (there may be more than one, e.g. methods of local classes)
+  var sessions = new HashMap[MethodTree, MethodSession]
   var results = new HashSet[BndResult]
 
   val MAX_NUM_OF_LOCAL_INVS = 16
@@ -49,8 +52,10 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
       verifiedBounds.foreach(res => Utils.printYellowString(res.methodTree.getName.toString))
     }
     println()
+    ContextPool.closeAll()
     Z3Solver.printTime()
     Invariant.printTime()
+    if (SolverMetrics.EXPORT) SolverMetrics.export(Utils.OUTPUT_DIR)
   }
 
   override def visitMethod(node: MethodTree, p: Void): Void = {
@@ -58,33 +63,49 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
     val classTree = TreeUtils.enclosingClass(treePath)
     assert(classTree != null)
 
-    val z3Solver = solvers.getOrElse(node, new Z3Solver)
-    solvers = solvers + (node -> z3Solver)
+    val session = new MethodSession(node)
+    sessions = sessions + (node -> session)
+    val z3Solver = session.z3Solver
 
     try {
       val cfg = CFGBuilder.build(treePath.getCompilationUnit, node, classTree, checker.getContext.getProcessingEnvironment)
       val myCFG = MyCFG(cfg)
-      cfgs += node -> myCFG
+      session.cfg = myCFG
+      Budget.register(session.budget, myCFG.graph.vertexSet().asScala.map(b => b.getId.toLong))
 
       if (node.getName.toString != "<init>") {
         GraphUtil.printCFGtoPDF(cfg, Utils.OUTPUT_DIR)
         GraphUtil.printGraphtoPDF(myCFG.graph, Utils.OUTPUT_DIR + Utils.SEPARATOR + classTree.getSimpleName + "_" + node.getName.toString)
       }
 
-      globalInvs = globalInvs + (node -> Invariant.genIntervalInv(GraphUtil.getProgAllVars(myCFG.graph), z3Solver))
+      session.globalInvs = Some(Invariant.genIntervalInv(GraphUtil.getProgAllVars(myCFG.graph), z3Solver))
 
       val myVars = Invariant.getMethodVars(node, myCFG.allVars, z3Solver)
 
-      vars = vars + (node -> myVars)
+      session.vars = myVars
 
       if (myVars.args.nonEmpty && myVars.resVars.nonEmpty) {
         val guesses = Invariant.genBounds(myVars, z3Solver)
-        bounds = bounds + (node -> guesses)
+        session.bounds = Some(guesses)
         println("\nWe attempt to automatically verify " + guesses.size + " bound(s) for method " + node.getName)
       }
       else {
         println("\nWe did not attempt to verify bounds for method " + node.getName + ", because it does not contain resource variables or method arguments")
       }
+
+      if (Invariant.TRACE_FILTER) {
+        val traces = Interpreter.run(myCFG.graph, myVars)
+        Traces.register(traces)
+        session.traces = Some(traces)
+      }
+
+      if (Invariant.ABSTRACT_INTERPRETATION || Invariant.INFERENCE_ENGINE == Invariant.ABSTRACT) {
+        val facts = AbstractInterpreter.run(myCFG.graph, myVars)
+        Facts.register(facts)
+        session.facts = Some(facts)
+        // Candidates, which are verified like the interval invariants
+        session.globalInvs = session.globalInvs.map(invs => invs ++ facts.toExprs(facts.global, z3Solver))
+      }
     }
     catch {
       case ex: Exception =>
@@ -93,31 +114,25 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
       // ex.printStackTrace()
     }
 
-    super.visitMethod(node, p)
+    try {
+      super.visitMethod(node, p)
 
-    checkBound(node)
+      if (BATCH_GLOBAL_INV) verifyGlobInvsBatch(session)
+      checkBound(node)
+    } finally {
+      sessions = sessions - node
+      session.release()
+    }
     null
   }
 
   override def visitAssignment(node: AssignmentTree, p: Void): Void = {
-    val (myCFG, z3Solver, enclosingMethod, vars) = prep(node)
+    val (myCFG, z3Solver, session, vars) = prep(node)
 
     // Guess local invariants
     Utils.getResVarName(node.getVariable.toString) match {
       case Some(resVarName) =>
-        val blocks = myCFG.graph.vertexSet().asScala.filter({
-          case reg: RegularBlock => reg.getContents.asScala.zipWithIndex.exists({
-            case (n, idx) =>
-              if (n.getTree == node) {
-                if (idx != reg.getContents.size() - 1)
-                  assert(false, "Resource instruction [" + node.toString + "] must be at the end of a block!")
-                true
-              } else false
-          })
-          case _ => false
-        })
-        if (blocks.size != 1) assert(false, "Multiple/None blocks contain a same resource instruction!")
-        val curBlock = blocks.head.asInstanceOf[RegularBlock]
+        val curBlock = resourceBlockOf(node, myCFG)
         if (DEBUG_VISIT_ASSIGN) println("Visiting assignment in block: " + curBlock.getId)
 
         // GraphUtil.printGraph(myCFG.graph)
@@ -130,32 +145,30 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
           println()
         }
 
-        localInvs.get(enclosingMethod) match {
-          case Some(map) =>
-            localInvs = localInvs + (enclosingMethod -> (map + (node -> invs)))
-          case None =>
-            localInvs = localInvs + (enclosingMethod -> HashMap(node -> invs))
+        session.localInvs match {
+          case Some(map) => session.localInvs = Some(map + (node -> invs))
+          case None => session.localInvs = Some(HashMap(node -> invs))
         }
       case None => // This is not an assignment updating resource variables
     }
 
     // Verify global invariants
-    verifyGlobInvs(node, enclosingMethod, myCFG, z3Solver, vars)
+    verifyGlobInvs(node, session, myCFG, z3Solver, vars)
 
     super.visitAssignment(node, p)
   }
 
   override def visitVariable(node: VariableTree, p: Void): Void = {
-    val (myCFG, z3Solver, enclosingMethod, vars) = prep(node)
+    val (myCFG, z3Solver, session, vars) = prep(node)
 
     // Verify global invariants
-    verifyGlobInvs(node, enclosingMethod, myCFG, z3Solver, vars)
+    verifyGlobInvs(node, session, myCFG, z3Solver, vars)
 
     super.visitVariable(node, p)
   }
 
   override def visitAssert(node: AssertTree, p: Void): Void = {
-    val (myCFG, z3solver, enclosingMethod, vars) = prep(node)
+    val (myCFG, z3solver, session, vars) = prep(node)
 
     if (node.getDetail != null) {
       assert(node.getCondition != null)
@@ -163,37 +176,64 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
 
       if (node.getDetail.toString == "\"" + Utils.BOUND_STR + "\"") {
         Utils.printYellowString("Collected a bound to verify: " + expr + "\n")
-        bounds.get(enclosingMethod) match {
-          case Some(set) => bounds = bounds + (enclosingMethod -> (set + expr))
-          case None => bounds = bounds + (enclosingMethod -> HashSet(expr))
+        session.bounds match {
+          case Some(set) => session.bounds = Some(set + expr)
+          case None => session.bounds = Some(HashSet(expr))
         }
       }
       else if (node.getDetail.toString == "\"" + Utils.GLOBAL_STR + "\"") {
         Utils.printYellowString("Collected a global invariant: " + expr + "\n")
-        assumptions.get(enclosingMethod) match {
-          case Some(set) => assumptions = assumptions + (enclosingMethod -> (set + expr))
-          case None => assumptions = assumptions + (enclosingMethod -> HashSet(expr))
+        session.assumptions match {
+          case Some(set) => session.assumptions = Some(set + expr)
+          case None => session.assumptions = Some(HashSet(expr))
         }
       }
     }
     super.visitAssert(node, p)
   }
 
-  private def prep(node: Tree): (MyCFG, Z3Solver, MethodTree, Vars) = {
+  // The block that ends with the resource instruction
+  private def resourceBlockOf(node: Tree, myCFG: MyCFG): RegularBlock = {
+    val blocks = myCFG.graph.vertexSet().asScala.filter({
+      case reg: RegularBlock => reg.getContents.asScala.zipWithIndex.exists({
+        case (n, idx) =>
+          if (n.getTree == node) {
+            if (idx != reg.getContents.size() - 1)
+              assert(false, "Resource instruction [" + node.toString + "] must be at the end of a block!")
+            true
+          } else false
+      })
+      case _ => false
+    })
+    if (blocks.size != 1) assert(false, "Multiple/None blocks contain a same resource instruction!")
+    blocks.head.asInstanceOf[RegularBlock]
+  }
+
+  // Infer the local invariants of a method again over all variables, instead of the cones of influence
+  private def inferWithoutCone(session: MethodSession, invs: HashMap[Tree, Set[BoolExpr]]): HashMap[Tree, Set[BoolExpr]] = {
+    val myCFG = session.cfg
+    ConeOfInfluence.disable(myCFG.graph.vertexSet().asScala.map(b => b.getId.toLong))
+    if (DEBUG_LOCAL_INV) Utils.printYellowString("\nBounds are not verified with invariants over the cones of influence. Infer invariants over all variables...")
+    invs.map({
+      case (node, _) => node -> Invariant.inferInv(resourceBlockOf(node, myCFG), myCFG.graph, session.vars, session.z3Solver)
+    })
+  }
+
+  private def prep(node: Tree): (MyCFG, Z3Solver, MethodSession, Vars) = {
     val treePath = atypeFactory.getPath(node)
     val enclosingMethod: MethodTree = TreeUtils.enclosingMethod(treePath)
     assert(enclosingMethod != null)
 
-    val z3Solver = solvers.getOrElse(enclosingMethod, new Z3Solver)
-    solvers = solvers + (enclosingMethod -> z3Solver)
+    val session = sessions.getOrElse(enclosingMethod, null)
+    assert(session != null)
 
-    val myCFG: MyCFG = cfgs.getOrElse(enclosingMethod, null)
+    val myCFG: MyCFG = session.cfg
     assert(myCFG != null)
 
-    val vars = this.vars.getOrElse(enclosingMethod, null)
+    val vars = session.vars
     assert(vars != null)
 
-    (myCFG, z3Solver, enclosingMethod, vars)
+    (myCFG, session.z3Solver, session, vars)
   }
 
   private def issueWarning(node: Object, msg: String): Unit = {
@@ -205,20 +245,26 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
   }
 
   // We only verify inductive global invariants (which is very demanding)
-  private def verifyGlobInvs(stmt: Tree, method: MethodTree, myCFG: MyCFG, z3Solver: Z3Solver, vars: Vars): Unit = {
+  private def verifyGlobInvs(stmt: Tree, session: MethodSession, myCFG: MyCFG, z3Solver: Z3Solver, vars: Vars): Unit = {
     stmt match {
       case tree@(_: BlockTree | _: DoWhileLoopTree | _: EnhancedForLoopTree | _: ForLoopTree | _: IfTree | _: SwitchTree | _: SynchronizedTree | _: ThrowTree | _: TryTree | _: WhileLoopTree) => assert(false, "Should be an atomic statement!")
       case _ =>
     }
     // Reference: https://stackoverflow.com/questions/52645036/scala-syntax-to-match-on-multiple-case-class-types-without-decomposing-the-case
 
-    globalInvs.get(method) match {
+    if (BATCH_GLOBAL_INV) {
+      session.globalStmts = session.globalStmts :+ stmt
+      return
+    }
+    if (exhaustGlobInvs(session)) return
+
+    session.globalInvs match {
       case Some(invs) =>
         val newGlobInvs = invs.foldLeft(new HashSet[BoolExpr])({
           (acc, inv) =>
             val wlp = PredTrans.wlpBasic(stmt, inv, z3Solver)
             val implication = z3Solver.mkImplies(inv, wlp)
-            val res = Invariant.checkForall(implication, vars.allVars, z3Solver)
+            val res = Invariant.checkForall(implication, vars.allVars, z3Solver, QueryKind.GLOBAL_INV)
             if (res._1) acc + inv
             else acc
         })
@@ -227,33 +273,70 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
           Utils.printRedString("We verified " + newGlobInvs.size + " global invariants! # of invalidated invariants is: " + szUpdate)
           newGlobInvs.foreach(b => Utils.printYellowString(b.toString))
         }
-        globalInvs = globalInvs + (method -> newGlobInvs)
+        session.globalInvs = Some(newGlobInvs)
       case None =>
     }
   }
 
-  def checkBound(node: MethodTree): Unit = {
-    if (this.bounds.nonEmpty) println("===============================================\nBound verification starts for method " + node.getName.toString + "...")
+  // Once the budget runs out, candidate global invariants can not be verified, hence none of them is used
+  private def exhaustGlobInvs(session: MethodSession): Boolean = {
+    if (session.budget.isExhausted) {
+      session.budget.isHit = true
+      if (session.globalInvs.exists(invs => invs.nonEmpty)) {
+        Utils.printYellowString("The budget runs out before global invariants are verified. No global invariant is used")
+        session.globalInvs = Some(HashSet[BoolExpr]())
+      }
+      true
+    }
+    else false
+  }
 
-    this.bounds.filter(m => m._1 == node).foreach({
-      case (methodTree, bndsToCheck) =>
-        val z3Solver = solvers.getOrElse(methodTree, new Z3Solver)
-        val myCFG: MyCFG = cfgs.getOrElse(methodTree, null)
+  private def verifyGlobInvsBatch(session: MethodSession): Unit = {
+    if (exhaustGlobInvs(session)) return
+    (session.globalInvs, session.vars) match {
+      case (Some(invs), vars) if vars != null =>
+        val newGlobInvs = {
+          if (RELATIVE_GLOBAL_INV) {
+            val trusted = session.assumptions.getOrElse(HashSet[BoolExpr]()).toList
+            HashSet(Invariant.largestInductiveSubset(invs.toList, trusted, session.globalStmts, vars, session.z3Solver): _*)
+          }
+          else HashSet(Invariant.verifyGlobInvs(invs.toList, session.globalStmts, vars, session.z3Solver): _*)
+        }
+        if (DEBUG_GLOBAL_INV) {
+          val szUpdate = invs.size - newGlobInvs.size
+          Utils.printRedString("We verified " + newGlobInvs.size + " global invariants! # of invalidated invariants is: " + szUpdate)
+          newGlobInvs.foreach(b => Utils.printYellowString(b.toString))
+        }
+        session.globalInvs = Some(newGlobInvs)
+      case _ =>
+    }
+  }
+
+  def checkBound(node: MethodTree): Unit = {
+    val session = sessions.getOrElse(node, null)
+    assert(session != null)
+    if (session.bounds.nonEmpty) println("===============================================\nBound verification starts for method " + node.getName.toString + "...")
+
+    session.bounds.foreach({
+      bndsToCheck =>
+        val methodTree = node
+        val z3Solver = session.z3Solver
+        val myCFG: MyCFG = session.cfg
         assert(myCFG != null)
 
-        val vars = this.vars.getOrElse(methodTree, null)
+        val vars = session.vars
         assert(vars != null || vars.allVars.isEmpty, "Method " + methodTree.getName.toString + " doesn't have any variables!")
         val (localVars, globalVars) = (vars.locals, vars.args ++ vars.resVars)
 
         val globals: BoolExpr = {
           Utils.printYellowString("\nGlobal invariants are")
-          val g = globalInvs.get(methodTree) match {
+          val g = session.globalInvs match {
             case Some(invs) =>
               invs.foreach(inv => Utils.printBlueString(inv))
               Invariant.getConjunction(invs, z3Solver)
             case None => z3Solver.mkTrue()
           }
-          val a = assumptions.get(methodTree) match {
+          val a = session.assumptions match {
             case Some(invs) =>
               invs.foreach(inv => Utils.printBlueString(inv))
               Invariant.getConjunction(invs, z3Solver)
@@ -265,10 +348,10 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
         // Necessary because we did not check the base case of global invariants
         val validGlobals = {
           val exist = {
-            if (vars.args.isEmpty) globals
+            if (vars.args.isEmpty || Invariant.QUANTIFIER_FREE_VC) globals
             else z3Solver.mkExists(vars.args.toArray, globals)
           }
-          val res = z3Solver.checkSAT(exist)
+          val res = z3Solver.checkSAT(exist, QueryKind.BOUND_EXISTS)
           res
         }
 
@@ -277,54 +360,82 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
             "satisfies the above global invariants. Bound verification is skipped...")
         }
         else {
-          localInvs.get(methodTree) match {
+          session.localInvs match {
             case Some(invs) =>
-              val locals: Traversable[Traversable[BoolExpr]] = Utils.crossJoin(invs.values.toList)
-              val preds = locals.map({
-                local =>
-                  val l = Invariant.getConjunction(local.toList, z3Solver)
-                  val body = z3Solver.mkAnd(l, globals)
-                  val exist = {
-                    if (localVars.isEmpty) body
-                    else z3Solver.mkExists(localVars.toArray, body)
-                  }
-                  (exist, local)
-              })
+              def predsOf(invs: HashMap[Tree, Set[BoolExpr]]): List[(BoolExpr, Traversable[BoolExpr])] = {
+                val locals: Traversable[Traversable[BoolExpr]] = Utils.crossJoin(invs.values.toList)
+                locals.map({
+                  local =>
+                    val l = Invariant.getConjunction(local.toList, z3Solver)
+                    val body = z3Solver.mkAnd(l, globals)
+                    val exist = {
+                      if (localVars.isEmpty || Invariant.QUANTIFIER_FREE_VC) body
+                      else z3Solver.mkExists(localVars.toArray, body)
+                    }
+                    (exist, local)
+                }).toList
+              }
 
-              val bnds = bndsToCheck.map({
-                bndToCheck =>
-                  val helpfulPreds = preds.find({
-                    pred =>
-                      val assertion = {
-                        z3Solver.mkForall(
-                          globalVars.toArray,
-                          // We should use `implication` here (instead of `and`), because we don't expect all inputs
-                          // to satisfy both invariants and bounds. We only care if those program states that
-                          // satisfy invariants also satisfy bounds
-                          z3Solver.mkImplies(pred._1, bndToCheck)
-                        )
-                      }
-
-                      val res = z3Solver.checkSAT(assertion)
-                      if (DEBUG_VERIFICATION) println("\n" + res + "\n" + assertion.toString)
-                      res
-                  })
-                  helpfulPreds match {
-                    case Some(v) => BndInfo(bndToCheck, Some(v._2))
-                    case None => BndInfo(bndToCheck, None)
-                  }
-              })
+              // Bounds whose search for helpful invariants is cut short by the budget
+              var unreached = HashSet[BoolExpr]()
+
+              def check(bnds: Set[BoolExpr], preds: List[(BoolExpr, Traversable[BoolExpr])]): Set[BndInfo] = {
+                bnds.map({
+                  bndToCheck =>
+                    val (helpfulPreds, stopped) = SolverPool.findWithin(preds, z3Solver, () => session.budget.isExhausted)({
+                      (pred, solver) =>
+                        // We should use `implication` here (instead of `and`), because we don't expect all inputs
+                        // to satisfy both invariants and bounds. We only care if those program states that
+                        // satisfy invariants also satisfy bounds
+                        val implication = solver.mkImplies(solver.translate(pred._1), solver.translate(bndToCheck))
+                        val (res, assertion) = {
+                          if (Invariant.QUANTIFIER_FREE_VC) {
+                            // Forall g. ((Exists l. body) => bnd) is valid iff. Not(body => bnd) is unsatisfiable
+                            Invariant.checkForall(implication, Set[Expr](), solver, QueryKind.BOUND_FORALL)
+                          }
+                          else {
+                            val assertion = solver.mkForall(globalVars.toArray.map(v => solver.translateVar(v)), implication)
+                            (solver.checkSAT(assertion, QueryKind.BOUND_FORALL), assertion)
+                          }
+                        }
+                        if (DEBUG_VERIFICATION) println("\n" + res + "\n" + assertion.toString)
+                        res
+                    })
+                    if (stopped) {
+                      session.budget.isHit = true
+                      unreached += bndToCheck
+                    }
+                    helpfulPreds match {
+                      case Some(v) => BndInfo(bndToCheck, Some(v._2))
+                      case None => BndInfo(bndToCheck, None)
+                    }
+                })
+              }
+
+              val bnds = {
+                val res = check(bndsToCheck, predsOf(invs))
+                val failed = res.filter(bndInfo => bndInfo.pred.isEmpty)
+                // Invariants over the cones of influence may miss variables that bounds depend on
+                if (failed.isEmpty || !Invariant.CONE_OF_INFLUENCE || session.budget.isHit) res
+                else {
+                  val newInvs = inferWithoutCone(session, invs)
+                  session.localInvs = Some(newInvs)
+                  res -- failed ++ check(failed.map(bndInfo => bndInfo.bound.asInstanceOf[BoolExpr]), predsOf(newInvs))
+                }
+              }
 
-              val (verifiedBnds, unverifiedBnds) = bnds.foldLeft((HashSet[BndInfo](), HashSet[BndInfo]()))({
+              val (verifiedBnds, unverifiedBnds, unreachedBnds) = bnds.foldLeft((HashSet[BndInfo](), HashSet[BndInfo](), HashSet[BndInfo]()))({
                 (acc, bndInfo) =>
                   bndInfo.pred match {
-                    case Some(v) => (acc._1 + bndInfo, acc._2)
-                    case None => (acc._1, acc._2 + bndInfo)
+                    case Some(v) => (acc._1 + bndInfo, acc._2, acc._3)
+                    case None =>
+                      if (unreached.contains(bndInfo.bound.asInstanceOf[BoolExpr])) (acc._1, acc._2, acc._3 + bndInfo)
+                      else (acc._1, acc._2 + bndInfo, acc._3)
                   }
               })
 
               if (bndsToCheck.nonEmpty) {
-                val bndRes = BndResult(methodTree, verifiedBnds, unverifiedBnds)
+                val bndRes = BndResult(methodTree, verifiedBnds, unverifiedBnds, session.budget.isHit, unreachedBnds)
                 bndRes.printResults()
                 results = results + bndRes
               }
@@ -337,11 +448,18 @@ class BoundVisitor(checker: BaseTypeChecker) extends BaseTypeVisitor[BaseAnnotat
 
 case class Vars(locals: Set[Expr], args: Set[Expr], resVars: Set[Expr]) {
   val allVars: Set[Expr] = locals ++ args ++ resVars
+
+  def translate(z3Solver: Z3Solver): Vars = {
+    Vars(locals.map(v => z3Solver.translateVar(v)), args.map(v => z3Solver.translateVar(v)), resVars.map(v => z3Solver.translateVar(v)))
+  }
 }
 
 case class BndInfo(bound: Expr, pred: Option[Traversable[BoolExpr]])
 
-case class BndResult(methodTree: MethodTree, success: Set[BndInfo], failure: Set[BndInfo]) {
+// If partial, then the budget of the method runs out before inference (or the search for invariants that verify a
+// bound) finishes. Bounds in unreached are neither verified nor refuted, because the budget runs out before all
+// invariants are tried
+case class BndResult(methodTree: MethodTree, success: Set[BndInfo], failure: Set[BndInfo], partial: Boolean = false, unreached: Set[BndInfo] = HashSet()) {
   val isSuccessful: Boolean = success.nonEmpty
 
   def printResults(): Unit = {
@@ -359,5 +477,7 @@ case class BndResult(methodTree: MethodTree, success: Set[BndInfo], failure: Set
       })
     }
     failure.foreach(bndInfo => Utils.printRedString("[failure] Bound " + bndInfo.bound.toString + " for method " + methodName + " is not verified"))
+    unreached.foreach(bndInfo => Utils.printYellowString("[partial] Bound " + bndInfo.bound.toString + " for method " + methodName + " is not verified within the budget"))
+    if (partial) Utils.printYellowString("[partial] The budget of method " + methodName + " runs out, hence the above results are based on the invariants that are inferred within the budget")
   }
 }
\ No newline at end of file
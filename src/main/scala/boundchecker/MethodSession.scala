@@ -0,0 +1,51 @@
+package boundchecker
+
+import analysis.{Budget, ConeOfInfluence, ContextPool, Facts, Traces, Z3Solver}
+import com.microsoft.z3.BoolExpr
+import com.sun.source.tree.{MethodTree, Tree}
+import utils.MyCFG
+
+import scala.collection.JavaConverters._
+import scala.collection.immutable.HashMap
+
+/**
+  * @author Tianhan Lu
+  */
+// The analysis state of a method, which lives from visiting the method until its bounds are checked
+class MethodSession(val method: MethodTree) {
+  val z3Solver: Z3Solver = ContextPool.acquire()
+  val budget = new Budget(Budget.METHOD_BUDGET)
+
+  var cfg: MyCFG = _
+  var vars: Vars = _
+  var localInvs: Option[HashMap[Tree, Set[BoolExpr]]] = None
+  var globalInvs: Option[Set[BoolExpr]] = None
+  var assumptions: Option[Set[BoolExpr]] = None // Additional unchecked global invariants
+  var bounds: Option[Set[BoolExpr]] = None
+  var traces: Option[Traces] = None
+  var facts: Option[Facts] = None
+  var globalStmts: Vector[Tree] = Vector() // Statements to verify global invariants against (see BoundVisitor)
+
+  private var released = false
+
+  // Give the solver back to the pool. Expressions of this session must not be used afterwards
+  def release(): Unit = {
+    if (!released) {
+      released = true
+      localInvs = None
+      globalInvs = None
+      assumptions = None
+      bounds = None
+      traces.foreach(t => Traces.unregister(t))
+      traces = None
+      facts.foreach(f => Facts.unregister(f))
+      facts = None
+      globalStmts = Vector()
+      Budget.unregister(budget)
+      if (cfg != null) ConeOfInfluence.enable(cfg.graph.vertexSet().asScala.map(b => b.getId.toLong))
+      vars = null
+      cfg = null
+      ContextPool.release(z3Solver)
+    }
+  }
+}
@@ -137,6 +137,23 @@ object GraphUtil {
     newGraph
   }
 
+  // Block ids are drawn from a global counter, which must not be raced by the threads in SolverPool
+  def newSpecialBlock(typ: SpecialBlock.SpecialBlockType): SpecialBlockImpl = GraphUtil.synchronized(new SpecialBlockImpl(typ))
+
+  // Two graphs have the same fingerprint iff. they have the same vertices and edges (as in isSameGraph)
+  def fingerprint(graph: Graph[Block, DefaultEdge]): GraphFingerprint = fingerprint[Block, DefaultEdge](graph, b => b.getId)
+
+  def fingerprint[V, E](graph: Graph[V, E], idOf: V => Long): GraphFingerprint = {
+    val nodes = graph.vertexSet().asScala.toList.map(v => idOf(v)).toArray
+    util.Arrays.sort(nodes)
+    val edges = graph.edgeSet().asScala.toList
+      .map(edge => (idOf(graph.getEdgeSource(edge)), idOf(graph.getEdgeTarget(edge))))
+      .sorted
+      .flatMap({ case (src, tgt) => List(src, tgt) })
+      .toArray
+    GraphFingerprint(nodes, edges)
+  }
+
   def isSameGraph(g1: Graph[Block, DefaultEdge], g2: Graph[Block, DefaultEdge]): Boolean = {
     val nodes1 = g1.vertexSet().asScala.map(b => b.getId).toSet
     val nodes2 = g2.vertexSet().asScala.map(b => b.getId).toSet
@@ -229,4 +246,18 @@ case class MyCFG(cfg: ControlFlowGraph) {
 // - https://stackoverflow.com/questions/546655/finding-all-cycles-in-a-directed-graph
 // - https://code.google.com/archive/p/niographs/
 // - https://networkx.github.io/documentation/latest/reference/algorithms/generated/networkx.algorithms.cycles.simple_cycles.html
-// - https://en.wikipedia.org/wiki/Cycle_(graph_theory)
\ No newline at end of file
+// - https://en.wikipedia.org/wiki/Cycle_(graph_theory)
+
+// Sorted vertex ids, and sorted (source id, target id) pairs of edges
+case class GraphFingerprint(nodes: Array[Long], edges: Array[Long]) {
+  private val hash = util.Arrays.hashCode(nodes) * 31 + util.Arrays.hashCode(edges)
+
+  override def hashCode(): Int = hash
+
+  override def equals(obj: Any): Boolean = {
+    obj match {
+      case fp: GraphFingerprint => hash == fp.hashCode() && util.Arrays.equals(nodes, fp.nodes) && util.Arrays.equals(edges, fp.edges)
+      case _ => false
+    }
+  }
+}
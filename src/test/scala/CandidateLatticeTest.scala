@@ -0,0 +1,73 @@
+import analysis.CandidateLattice
+import org.scalatest.{FlatSpec, Matchers}
+
+import scala.collection.immutable.BitSet
+
+/**
+  * @author Tianhan Lu
+  */
+class CandidateLatticeTest extends FlatSpec with Matchers {
+  "CandidateLattice" should "not check supersets of candidates that fail the base case" in {
+    val lattice = new CandidateLattice(Vector("a", "b", "c"), 3)
+    var checked = List[Set[String]]()
+    lattice.explore({
+      candidates =>
+        candidates.map({
+          candidate =>
+            val atoms = lattice.atomsOf(candidate).toSet
+            checked = atoms :: checked
+            // Atom b fails the base case; atom c is only inductive together with a
+            (!atoms.contains("b"), !atoms.contains("c") || atoms.contains("a"))
+        })
+    })
+    checked.toSet should be(Set(Set(), Set("a"), Set("b"), Set("c"), Set("a", "c")))
+    lattice.numOfChecked should be(5)
+    lattice.numOfPruned should be(1)
+    lattice.maximalVerified.map(c => lattice.atomsOf(c)) should be(List(List("a", "c")))
+  }
+
+  it should "respect the maximum size of candidates" in {
+    val lattice = new CandidateLattice(Vector(1, 2, 3, 4), 2)
+    var sizes = List[Int]()
+    lattice.explore({
+      candidates =>
+        sizes = sizes ++ candidates.map(c => c.size)
+        candidates.map(_ => (true, true))
+    })
+    sizes.max should be(2)
+    sizes.size should be(1 + 4 + 6)
+    lattice.maximalVerified.toSet.size should be(6)
+    lattice.isRuledOut(BitSet(0, 1)) should be(false)
+  }
+
+  it should "keep the candidates that are verified before it is stopped" in {
+    val lattice = new CandidateLattice((0 until 10).toVector, 3)
+    var numOfBatches = 0
+    lattice.explore({
+      candidates =>
+        numOfBatches += 1
+        candidates.map(_ => (true, true))
+    }, Some(() => numOfBatches >= 2))
+    // The empty candidate, and then candidates of one atom
+    lattice.isTruncated should be(true)
+    lattice.numOfChecked should be(1 + 10)
+    lattice.maximalVerified.map(c => lattice.atomsOf(c)).toSet should be((0 until 10).map(i => List(i)).toSet)
+  }
+
+  it should "check candidates of preferred atoms first" in {
+    val lattice = new CandidateLattice((0 until 20).toVector, 2)
+    // The size and the index sum of each checked candidate, in the order of checks
+    var checked = List[(Int, Int)]()
+    var numOfBatches = 0
+    lattice.explore({
+      candidates =>
+        numOfBatches += 1
+        checked = checked ++ candidates.map(c => (c.size, c.sum))
+        candidates.map(_ => (true, true))
+    }, Some(() => false))
+    lattice.isTruncated should be(false)
+    // The 190 candidates of two atoms take more than one batch, and the order holds across batches
+    numOfBatches should be > 3
+    checked should be(checked.sorted)
+  }
+}
@@ -3,6 +3,7 @@ import org.jgrapht.alg.cycle.JohnsonSimpleCycles
 import org.jgrapht.alg.interfaces.StrongConnectivityAlgorithm
 import org.jgrapht.graph.{DefaultDirectedGraph, DefaultEdge}
 import org.scalatest.{FlatSpec, Matchers}
+import utils.GraphUtil
 
 import collection.JavaConverters._
 
@@ -43,4 +44,16 @@ class GraphTest extends FlatSpec with Matchers {
   val jAlg = new JohnsonSimpleCycles(directedGraph)
   println("All simple cycles")
   jAlg.findSimpleCycles().asScala.foreach(cycle => println(cycle))
+
+  "Graph fingerprints" should "only depend on vertices and edges" in {
+    val idOf = (v: String) => v.charAt(0).toLong
+    val copy = new DefaultDirectedGraph[String, DefaultEdge](classOf[DefaultEdge])
+    directedGraph.vertexSet().asScala.toList.reverse.foreach(v => copy.addVertex(v))
+    directedGraph.edgeSet().asScala.toList.reverse.foreach(e => copy.addEdge(directedGraph.getEdgeSource(e), directedGraph.getEdgeTarget(e)))
+    GraphUtil.fingerprint(copy, idOf) should equal(GraphUtil.fingerprint(directedGraph, idOf))
+
+    copy.removeEdge("i", "h")
+    copy.addEdge("h", "i")
+    GraphUtil.fingerprint(copy, idOf) should not equal GraphUtil.fingerprint(directedGraph, idOf)
+  }
 }
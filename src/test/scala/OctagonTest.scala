@@ -0,0 +1,73 @@
+import analysis.{AbstractInterpreter, Octagon}
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+  * @author Tianhan Lu
+  */
+class OctagonTest extends FlatSpec with Matchers {
+  "Octagon" should "derive the relations that constraints imply" in {
+    // x0 - x1 <= 1, x1 - x2 <= 2, x2 <= 3
+    val oct = Octagon.top(3).addConstraint(0, 1, 1, -1, 1).addConstraint(1, 1, 2, -1, 2).addConstraint(2, 1, 3)
+    oct.upper(0, 1, 2, -1) should be(Some(3))
+    oct.upper(0) should be(Some(6))
+    oct.lower(0) should be(None)
+  }
+
+  it should "be empty if constraints are unsatisfiable" in {
+    val oct = Octagon.top(2).addConstraint(0, 1, 1, -1, -1).addConstraint(1, 1, 0, -1, -1)
+    oct.isBottom should be(true)
+    // 2 * x0 <= 1 /\ 2 * x0 >= 1 has no integer solution
+    Octagon.top(1).addConstraint(0, 1, 0, 1, 1).addConstraint(0, -1, 0, -1, -1).isBottom should be(true)
+  }
+
+  it should "keep relations through assignments" in {
+    // x0 := 0; x1 := x0; x0 := x0 + 1
+    val oct = Octagon.top(2).assignInterval(0, Some(0), Some(0)).assign(1, 1, 0, 0).assign(0, 1, 0, 1)
+    oct.upper(0, 1, 1, -1) should be(Some(1))
+    oct.upper(1, 1, 0, -1) should be(Some(-1))
+    oct.upper(0) should be(Some(1))
+    oct.lower(1) should be(Some(0))
+  }
+
+  it should "reach a fixpoint by widening" in {
+    // i := 0; while (*) i := i + 1
+    val init = Octagon.top(1).assignInterval(0, Some(0), Some(0))
+    var head = init
+    var stable = false
+    var iterations = 0
+    while (!stable) {
+      val next = head.widen(head.join(init.join(head.assign(0, 1, 0, 1))))
+      stable = next.leq(head)
+      head = next
+      iterations += 1
+    }
+    iterations should be <= 3
+    head.lower(0) should be(Some(0))
+    head.upper(0) should be(None)
+  }
+
+  it should "list its finite constraints" in {
+    val oct = Octagon.top(2).assignInterval(0, Some(1), Some(2))
+    oct.constraints.toSet should be(Set((0, 1, -1, 0, 2L), (0, -1, -1, 0, -1L)))
+  }
+
+  "AbstractInterpreter" should "join the states after statements into a global fact" in {
+    // R := 0; i := 0; while (*) { i := i + 1; R := R + 1 }, where x0 is R, x1 is i and x2 is an argument
+    val init = Octagon.top(3).assignInterval(0, Some(0), Some(0)).assignInterval(1, Some(0), Some(0))
+    var head = init
+    var stable = false
+    while (!stable) {
+      val next = head.widen(head.join(init.join(head.assign(1, 1, 1, 1).assign(0, 1, 0, 1))))
+      stable = next.leq(head)
+      head = next
+    }
+    val body = head.assign(1, 1, 1, 1).assign(0, 1, 0, 1)
+    val global = AbstractInterpreter.joinAll(List(init, body), 3)
+    global.lower(1) should be(Some(0))
+    global.upper(0, 1, 1, -1) should be(Some(0))
+    global.upper(1, 1, 0, -1) should be(Some(0))
+    global.upper(2) should be(None)
+    // The entry state would make it top
+    AbstractInterpreter.joinAll(List(Octagon.top(3), init, body), 3).constraints should be(Nil)
+  }
+}
@@ -0,0 +1,56 @@
+import java.io.File
+
+import analysis.{Digest, PersistentCache}
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+  * @author Tianhan Lu
+  */
+class PersistentCacheTest extends FlatSpec with Matchers {
+  private def tempFile(): File = {
+    val file = File.createTempFile("queries", ".cache")
+    file.deleteOnExit()
+    file
+  }
+
+  "PersistentCache" should "keep results across instances" in {
+    val file = tempFile()
+    val cache = new PersistentCache(file, 64)
+    cache.put(Digest(1, 2), res = true)
+    cache.put(Digest(3, 4), res = false)
+    cache.close()
+
+    val reopened = new PersistentCache(file, 64)
+    reopened.get(Digest(1, 2)) should be(Some(true))
+    reopened.get(Digest(3, 4)) should be(Some(false))
+    reopened.get(Digest(1, 3)) should be(None)
+    reopened.size should be(2)
+    reopened.hits should be(2)
+    reopened.misses should be(1)
+    reopened.close()
+  }
+
+  it should "evict the least recently used result" in {
+    val cache = new PersistentCache(tempFile(), PersistentCache.PROBE_LENGTH)
+    (0 until PersistentCache.PROBE_LENGTH).foreach(i => cache.put(Digest(0, i), res = true))
+    cache.get(Digest(0, 0)) should be(Some(true))
+    cache.put(Digest(0, 100), res = false)
+    cache.size should be(PersistentCache.PROBE_LENGTH)
+    cache.get(Digest(0, 1)) should be(None)
+    cache.get(Digest(0, 0)) should be(Some(true))
+    cache.get(Digest(0, 100)) should be(Some(false))
+    cache.close()
+  }
+
+  it should "start over a file with another number of slots" in {
+    val file = tempFile()
+    val cache = new PersistentCache(file, 64)
+    cache.put(Digest(5, 6), res = true)
+    cache.close()
+
+    val resized = new PersistentCache(file, 128)
+    resized.get(Digest(5, 6)) should be(None)
+    resized.size should be(0)
+    resized.close()
+  }
+}
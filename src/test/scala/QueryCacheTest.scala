@@ -0,0 +1,68 @@
+import analysis.{QueryCache, QueryKey, Z3Solver}
+import com.microsoft.z3.Expr
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+  * @author Tianhan Lu
+  */
+class QueryCacheTest extends FlatSpec with Matchers {
+  "QueryKey" should "compare encodings by value" in {
+    QueryKey(Array(2, 17, 1, 0, 42)) should equal(QueryKey(Array(2, 17, 1, 0, 42)))
+    QueryKey(Array(2, 17, 1, 0, 42)) should not equal QueryKey(Array(2, 17, 1, 0, 43))
+  }
+
+  "QueryCache" should "evict the least recently used query" in {
+    val cache = new QueryCache(2)
+    val (k1, k2, k3) = (QueryKey(Array(1)), QueryKey(Array(2)), QueryKey(Array(3)))
+    cache.put(k1, null, true)
+    cache.put(k2, null, false)
+    cache.get(k1) should be(Some(true))
+    cache.put(k3, null, true)
+    cache.size should be(2)
+    cache.get(k2) should be(None)
+    cache.get(k1) should be(Some(true))
+    cache.get(k3) should be(Some(true))
+    cache.hits should be(3)
+    cache.misses should be(1)
+  }
+
+  "QueryCache.keyOf" should "give alpha-equivalent queries the same key" in {
+    val z3Solver = new Z3Solver
+    val isFresh = (name: String) => z3Solver.freshNames.contains(name)
+    val n = z3Solver.mkIntVar("n")
+    val zero = z3Solver.mkIntVal(0)
+    val (f1, f2, f3, f4) = (z3Solver.mkRandIntVar(), z3Solver.mkRandIntVar(), z3Solver.mkRandIntVar(), z3Solver.mkRandIntVar())
+
+    // Fresh variables are renamed consistently
+    val q1 = z3Solver.mkAnd(z3Solver.mkGe(z3Solver.mkAdd(n, f1), zero), z3Solver.mkGe(f2, f1))
+    val q2 = z3Solver.mkAnd(z3Solver.mkGe(z3Solver.mkAdd(n, f3), zero), z3Solver.mkGe(f4, f3))
+    QueryCache.keyOf(q1, isFresh) should equal(QueryCache.keyOf(q2, isFresh))
+
+    // Names of bound variables are ignored
+    val (x, y) = (z3Solver.mkIntVar("x"), z3Solver.mkIntVar("y"))
+    val b1 = z3Solver.mkForall(Array(x), z3Solver.mkGe(z3Solver.mkAdd(x, n), zero))
+    val b2 = z3Solver.mkForall(Array(y), z3Solver.mkGe(z3Solver.mkAdd(y, n), zero))
+    QueryCache.keyOf(b1, isFresh) should equal(QueryCache.keyOf(b2, isFresh))
+    z3Solver.close()
+  }
+
+  it should "give different queries different keys" in {
+    val z3Solver = new Z3Solver
+    val isFresh = (name: String) => z3Solver.freshNames.contains(name)
+    val (n, m) = (z3Solver.mkIntVar("n"), z3Solver.mkIntVar("m"))
+    val zero = z3Solver.mkIntVal(0)
+    val (f1, f2) = (z3Solver.mkRandIntVar(), z3Solver.mkRandIntVar())
+    val keyOf = (e: Expr) => QueryCache.keyOf(e, isFresh)
+
+    // Variables that are not fresh keep their names
+    keyOf(z3Solver.mkGe(n, zero)) should not equal keyOf(z3Solver.mkGe(m, zero))
+    keyOf(z3Solver.mkGe(n, zero)) should not equal keyOf(z3Solver.mkGe(n, z3Solver.mkIntVal(1)))
+    keyOf(z3Solver.mkGe(n, f1)) should not equal keyOf(z3Solver.mkGe(f1, n))
+    // Renaming two distinct fresh variables into one changes the query
+    keyOf(z3Solver.mkGe(f1, f2)) should not equal keyOf(z3Solver.mkGe(f1, f1))
+    // A bound variable is not a free one
+    val x = z3Solver.mkIntVar("x")
+    keyOf(z3Solver.mkForall(Array(x), z3Solver.mkGe(x, zero))) should not equal keyOf(z3Solver.mkGe(x, zero))
+    z3Solver.close()
+  }
+}
@@ -0,0 +1,40 @@
+import analysis.{QueryKind, SolverMetrics}
+import com.microsoft.z3.Status
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+  * @author Tianhan Lu
+  */
+class SolverMetricsTest extends FlatSpec with Matchers {
+  "SolverMetrics" should "put latencies into histogram buckets" in {
+    SolverMetrics.bucketOf(0.5) should be(0)
+    SolverMetrics.bucketOf(1) should be(0)
+    SolverMetrics.bucketOf(3) should be(2)
+    SolverMetrics.bucketOf(100000) should be(SolverMetrics.BUCKETS.length)
+  }
+
+  it should "export the metrics of each kind of queries" in {
+    SolverMetrics.reset()
+    SolverMetrics.recordQuery(QueryKind.BASE_CASE, 0.003, Status.UNSATISFIABLE, "", 10, None)
+    SolverMetrics.recordQuery(QueryKind.BASE_CASE, 30, Status.UNKNOWN, "timeout", 20, None)
+    SolverMetrics.recordCacheLookup(QueryKind.BASE_CASE, hit = true)
+    SolverMetrics.recordCacheLookup(QueryKind.BOUND_FORALL, hit = false)
+
+    val rows = SolverMetrics.toCsv.split("\n")
+    rows.length should be(3)
+    rows(1) should startWith("BASE_CASE,2,0,1,1,1,1,0,")
+    rows(1) should endWith(",0,0,1,0,0,0,0,0,0,0,0,0,0,0,1")
+    rows(2) should startWith("BOUND_FORALL,0,0,0,0,0,0,1,")
+    SolverMetrics.toJson should include("\"max_formula_size\": 20")
+    SolverMetrics.reset()
+  }
+
+  it should "record what each query adds to cumulative statistics" in {
+    val first = Map("conflicts" -> 3.0, "max memory" -> 10.0)
+    val second = Map("conflicts" -> 5.0, "max memory" -> 12.0, "decisions" -> 4.0)
+    SolverMetrics.deltaOf(Map(), first) should be(first)
+    SolverMetrics.deltaOf(first, second) should be(Map("conflicts" -> 2.0, "max memory" -> 12.0, "decisions" -> 4.0))
+    // After a reset of the solver
+    SolverMetrics.deltaOf(second, first) should be(first)
+  }
+}